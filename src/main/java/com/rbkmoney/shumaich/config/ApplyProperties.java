@@ -0,0 +1,139 @@
+package com.rbkmoney.shumaich.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "apply")
+public class ApplyProperties {
+
+    private Mode mode = Mode.RECORD;
+
+    /**
+     * Amount of account stripes applied in parallel within one batch, 1 disables striping.
+     * Supported only in RECORD mode, where offsets are not written together with the state.
+     */
+    private int stripes = 1;
+
+    private FlowControl flowControl = new FlowControl();
+
+    private Retry retry = new Retry();
+
+    private InMemory inMemory = new InMemory();
+
+    private BalanceCache balanceCache = new BalanceCache();
+
+    /**
+     * Plans written before they were split into segments of accounts are also read under their old keys.
+     * Enable once after upgrade of a database with such plans, until they are finished or expired.
+     */
+    private boolean legacyPlanKeys = false;
+
+    public enum Mode {
+        /**
+         * Every operation log is applied in its own synced transaction, offsets are saved by consumer afterwards.
+         */
+        RECORD,
+        /**
+         * Every operation log is applied in its own synced transaction together with its offset,
+         * so stored offsets never lag behind balances and plans.
+         */
+        RECORD_WITH_OFFSETS,
+        /**
+         * Whole poll is applied in one transaction together with consumed offsets - single synced write per poll.
+         */
+        GROUP_COMMIT,
+        /**
+         * Balances and plans of every partition are kept in memory by its consumer and applied without I/O.
+         * They are written with the offset as a snapshot, after restart partition is replayed from that offset.
+         */
+        IN_MEMORY
+    }
+
+    @Getter
+    @Setter
+    public static class FlowControl {
+
+        private boolean enabled = false;
+
+        /**
+         * Apply latency of one batch to keep, batch limit halves above it and grows while batches are full
+         * and take less than a half of it.
+         */
+        private long targetLatencyMs = 200;
+
+        private int minBatchSize = 10;
+
+        /**
+         * Also used as max.poll.records, so replay after downtime runs with the largest batches.
+         */
+        private int maxBatchSize = 500;
+
+        /**
+         * Applying waits while RocksDB stops or delays writes, or pending compaction exceeds this amount.
+         */
+        private long pendingCompactionBytesLimit = 32L * 1024 * 1024 * 1024;
+
+        private long stallBackoffMs = 100;
+
+    }
+
+    @Getter
+    @Setter
+    public static class Retry {
+
+        /**
+         * Attempts to apply a record after its batch has failed, including the first one.
+         */
+        private int maxAttempts = 5;
+
+        private long initialBackoffMs = 100;
+
+        private long maxBackoffMs = 5000;
+
+        /**
+         * Record that failed every attempt is moved to quarantine and skipped. Otherwise consumer stops
+         * and is restarted from the stored offset. Not supported in IN_MEMORY mode.
+         */
+        private boolean quarantine = false;
+
+    }
+
+    @Getter
+    @Setter
+    public static class InMemory {
+
+        /**
+         * Partition state is written to RocksDB when this much time passed since its previous snapshot.
+         */
+        private long snapshotIntervalMs = 1000;
+
+        /**
+         * Partition state is also written right after applying this amount of records.
+         */
+        private int snapshotRecords = 10000;
+
+    }
+
+    @Getter
+    @Setter
+    public static class BalanceCache {
+
+        /**
+         * Balances are read from cache updated after commit, every change is still written to RocksDB
+         * within the transaction of its batch.
+         */
+        private boolean enabled = false;
+
+        /**
+         * Amount of accounts kept, least recently applied ones are evicted first.
+         */
+        private long maxSize = 10000;
+
+    }
+
+}
@@ -0,0 +1,33 @@
+package com.rbkmoney.shumaich.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Consumer group lets several instances split partitions, every instance applies its partitions
+ * to its own RocksDB. Offsets are still read from RocksDB, group is used only for ownership.
+ */
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "kafka.topics.group")
+public class GroupMembershipProperties {
+
+    private boolean enabled = false;
+
+    private String groupId = "shumaich";
+
+    /**
+     * Static member id, stable across restarts of the same instance, so restart doesn't move its partitions.
+     * Empty means dynamic membership.
+     */
+    private String instanceId = "";
+
+    /**
+     * Static member keeps its partitions while it is away for less than this time.
+     */
+    private int sessionTimeoutMs = 30_000;
+
+}
@@ -2,6 +2,10 @@ package com.rbkmoney.shumaich.config;
 
 import com.rbkmoney.damsel.shumaich.OperationLog;
 import com.rbkmoney.kafka.common.serialization.ThriftSerializer;
+import com.rbkmoney.shumaich.kafka.ApplyFlowControl;
+import com.rbkmoney.shumaich.kafka.ApplyRetry;
+import com.rbkmoney.shumaich.kafka.ConsumerSupervisor;
+import com.rbkmoney.shumaich.kafka.PartitionRebalancer;
 import com.rbkmoney.shumaich.kafka.TopicConsumptionManager;
 import com.rbkmoney.shumaich.kafka.handler.Handler;
 import com.rbkmoney.shumaich.kafka.serde.OperationLogDeserializer;
@@ -12,12 +16,16 @@ import org.apache.kafka.clients.admin.AdminClient;
 import org.apache.kafka.clients.admin.AdminClientConfig;
 import org.apache.kafka.clients.admin.TopicDescription;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.CooperativeStickyAssignor;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.common.config.SslConfigs;
 import org.apache.kafka.common.security.auth.SecurityProtocol;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.Deserializer;
 import org.apache.kafka.common.serialization.LongDeserializer;
 import org.apache.kafka.common.serialization.LongSerializer;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.DependsOn;
@@ -30,20 +38,31 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
 @Configuration
 @RequiredArgsConstructor
 public class KafkaConfiguration {
 
     private static final String EARLIEST = "earliest";
     private final KafkaSslProperties kafkaSslProperties;
+    private final ApplyProperties applyProperties;
+    private final RocksDbProperties rocksDbProperties;
+    private final GroupMembershipProperties groupMembershipProperties;
     @Value("${kafka.bootstrap-servers}")
     private String bootstrapServers;
     @Value("${kafka.topics.partitions-per-thread}")
     private Integer partitionsPerThread;
     @Value("${kafka.topics.polling-timeout}")
     private Long pollingTimeout;
+    @Value("${kafka.topics.prefetch-batches}")
+    private Integer prefetchBatches;
+    @Value("${kafka.topics.partition-workers}")
+    private boolean partitionWorkers;
     @Value("${kafka.topics.operation-log-name}")
     private String operationLogTopicName;
+    @Value("${kafka.topics.final-operation-log-name}")
+    private String finalOperationLogTopicName;
 
     private Map<String, Object> consumerConfig() {
         final Map<String, Object> props = new HashMap<>();
@@ -51,6 +70,17 @@ public class KafkaConfiguration {
         props.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, EARLIEST);
         props.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, false);
         props.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, LongDeserializer.class);
+        if (applyProperties.getFlowControl().isEnabled()) {
+            props.put(ConsumerConfig.MAX_POLL_RECORDS_CONFIG, applyProperties.getFlowControl().getMaxBatchSize());
+        }
+        if (groupMembershipProperties.isEnabled()) {
+            props.put(ConsumerConfig.GROUP_ID_CONFIG, groupMembershipProperties.getGroupId());
+            props.put(ConsumerConfig.PARTITION_ASSIGNMENT_STRATEGY_CONFIG, CooperativeStickyAssignor.class.getName());
+            props.put(ConsumerConfig.SESSION_TIMEOUT_MS_CONFIG, groupMembershipProperties.getSessionTimeoutMs());
+            if (!isBlank(groupMembershipProperties.getInstanceId())) {
+                props.put(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG, groupMembershipProperties.getInstanceId());
+            }
+        }
 
         configureSsl(props, kafkaSslProperties);
 
@@ -93,19 +123,54 @@ public class KafkaConfiguration {
 
     @Bean
     @DependsOn("rocksDB")
+    @ConditionalOnProperty(value = "kafka.topics.lazy-deserialization", havingValue = "false", matchIfMissing = true)
     public TopicConsumptionManager<Long, OperationLog> operationLogTopicConsumptionManager(
             AdminClient kafkaAdminClient,
             KafkaOffsetService kafkaOffsetService,
-            Handler<Long, OperationLog> handler) throws ExecutionException, InterruptedException {
+            Handler<Long, OperationLog> handler,
+            ApplyFlowControl applyFlowControl,
+            ApplyRetry applyRetry,
+            PartitionRebalancer partitionRebalancer,
+            ConsumerSupervisor consumerSupervisor) throws ExecutionException, InterruptedException {
+        return createTopicConsumptionManager(OperationLogDeserializer.class, kafkaAdminClient, kafkaOffsetService,
+                handler, applyFlowControl, applyRetry, partitionRebalancer, consumerSupervisor);
+    }
+
+    @Bean
+    @DependsOn("rocksDB")
+    @ConditionalOnProperty(value = "kafka.topics.lazy-deserialization", havingValue = "true")
+    public TopicConsumptionManager<Long, byte[]> rawOperationLogTopicConsumptionManager(
+            AdminClient kafkaAdminClient,
+            KafkaOffsetService kafkaOffsetService,
+            Handler<Long, byte[]> handler,
+            ApplyFlowControl applyFlowControl,
+            ApplyRetry applyRetry,
+            PartitionRebalancer partitionRebalancer,
+            ConsumerSupervisor consumerSupervisor) throws ExecutionException, InterruptedException {
+        return createTopicConsumptionManager(ByteArrayDeserializer.class, kafkaAdminClient, kafkaOffsetService,
+                handler, applyFlowControl, applyRetry, partitionRebalancer, consumerSupervisor);
+    }
+
+    private <V> TopicConsumptionManager<Long, V> createTopicConsumptionManager(
+            Class<? extends Deserializer<V>> valueDeserializer,
+            AdminClient kafkaAdminClient,
+            KafkaOffsetService kafkaOffsetService,
+            Handler<Long, V> handler,
+            ApplyFlowControl applyFlowControl,
+            ApplyRetry applyRetry,
+            PartitionRebalancer partitionRebalancer,
+            ConsumerSupervisor consumerSupervisor) throws ExecutionException, InterruptedException {
         Map<String, Object> consumerProps = consumerConfig();
         consumerProps.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, LongDeserializer.class);
-        consumerProps.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, OperationLogDeserializer.class);
+        consumerProps.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, valueDeserializer);
 
-        TopicDescription topicDescription = kafkaAdminClient
-                .describeTopics(List.of(operationLogTopicName))
-                .values()
-                .get(operationLogTopicName)
-                .get();
+        TopicDescription topicDescription = describeTopic(kafkaAdminClient, operationLogTopicName);
+        checkGroupMembership();
+        String priorityTopicName = null;
+        if (!isBlank(finalOperationLogTopicName)) {
+            checkFinalOperationLane(topicDescription, describeTopic(kafkaAdminClient, finalOperationLogTopicName));
+            priorityTopicName = finalOperationLogTopicName;
+        }
 
         return new TopicConsumptionManager<>(
                 topicDescription,
@@ -113,10 +178,70 @@ public class KafkaConfiguration {
                 consumerProps,
                 kafkaOffsetService,
                 handler,
-                pollingTimeout
+                applyFlowControl,
+                applyRetry,
+                pollingTimeout,
+                prefetchBatches,
+                partitionWorkers,
+                partitionRebalancer,
+                kafkaAdminClient,
+                consumerSupervisor,
+                priorityTopicName,
+                isPartitionRefreshSupported()
         );
     }
 
+    /**
+     * Added partitions move accounts between consumers. Without row locks, and with balances kept by consumer
+     * in memory or cache, moved account would be written by two consumers until the old one drains.
+     * Lane partitions are checked against the topic only at start and aren't drained before new ones.
+     */
+    private boolean isPartitionRefreshSupported() {
+        return rocksDbProperties.getEngine() != RocksDbProperties.Engine.WRITE_BATCH
+               && applyProperties.getMode() != ApplyProperties.Mode.IN_MEMORY
+               && !applyProperties.getBalanceCache().isEnabled()
+               && isBlank(finalOperationLogTopicName);
+    }
+
+    private TopicDescription describeTopic(AdminClient kafkaAdminClient, String topicName)
+            throws ExecutionException, InterruptedException {
+        return kafkaAdminClient
+                .describeTopics(List.of(topicName))
+                .values()
+                .get(topicName)
+                .get();
+    }
+
+    /**
+     * Partition workers are created for partitions known at start. Lanes need both topic partitions
+     * of the same number on one consumer, cooperative assignment doesn't keep them together.
+     */
+    private void checkGroupMembership() {
+        if (!groupMembershipProperties.isEnabled()) {
+            return;
+        }
+        if (partitionWorkers) {
+            throw new IllegalStateException("Partition workers are not supported with consumer group");
+        }
+        if (!isBlank(finalOperationLogTopicName)) {
+            throw new IllegalStateException("Final operations lane is not supported with consumer group");
+        }
+    }
+
+    /**
+     * Account of final operation must be owned by the consumer of its holds, so lanes need the same partitioning.
+     * In-memory partition state holds balances of one topic partition, it can't be shared between lanes.
+     */
+    private void checkFinalOperationLane(TopicDescription topicDescription, TopicDescription laneDescription) {
+        if (topicDescription.partitions().size() != laneDescription.partitions().size()) {
+            throw new IllegalStateException(String.format("Topics %s and %s have different partitions amount",
+                    topicDescription.name(), laneDescription.name()));
+        }
+        if (applyProperties.getMode() == ApplyProperties.Mode.IN_MEMORY) {
+            throw new IllegalStateException("Final operations lane is not supported in IN_MEMORY apply mode");
+        }
+    }
+
     private void configureSsl(Map<String, Object> props, KafkaSslProperties kafkaSslProperties) {
         if (kafkaSslProperties.isEnabled()) {
             props.put(CommonClientConfigs.SECURITY_PROTOCOL_CONFIG, SecurityProtocol.SSL.name());
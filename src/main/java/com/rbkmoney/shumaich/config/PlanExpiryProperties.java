@@ -0,0 +1,28 @@
+package com.rbkmoney.shumaich.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "plan-expiry")
+public class PlanExpiryProperties {
+
+    private boolean enabled = false;
+
+    /**
+     * Plan expires when neither its operations were applied nor final operation was registered for this long.
+     */
+    private long ttlMs = 7L * 24 * 60 * 60 * 1000;
+
+    private long sweepIntervalMs = 60000;
+
+    /**
+     * Amount of due plans checked by one sweep, the rest are left for the next ones.
+     */
+    private int sweepLimit = 10000;
+
+}
@@ -0,0 +1,36 @@
+package com.rbkmoney.shumaich.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "kafka.topics.rebalance")
+public class RebalanceProperties {
+
+    private boolean enabled = false;
+
+    private int minConsumers = 1;
+
+    private int maxConsumers = 8;
+
+    /**
+     * Load one consumer thread is expected to handle per check: lag plus records applied since previous check.
+     */
+    private long loadPerConsumer = 10_000;
+
+    /**
+     * Partitions are moved only when the most loaded consumer has this many times more load than it would
+     * have after rebalancing.
+     */
+    private double imbalanceRatio = 1.5;
+
+    /**
+     * Skew below this load is not worth a consumer restart.
+     */
+    private long minSkewLoad = 1_000;
+
+}
@@ -0,0 +1,21 @@
+package com.rbkmoney.shumaich.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "kafka.topics.restart")
+public class RestartProperties {
+
+    private long initialBackoffMs = 100;
+
+    /**
+     * Also the time consumer has to work after restart for the next failure to start from initial backoff.
+     */
+    private long maxBackoffMs = 30_000;
+
+}
@@ -7,6 +7,8 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import javax.annotation.PreDestroy;
+
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -17,21 +19,41 @@ import java.util.stream.Collectors;
 @Configuration
 public class RocksDbConfiguration {
 
+    private static final long MB = 1024 * 1024;
+
+    // column family options and their filters must outlive the database, which is closed before this configuration
+    private final List<RocksObject> columnFamilyObjects = new ArrayList<>();
+
     @Bean(destroyMethod = "closeE")
-    TransactionDB rocksDB(
+    RocksDB rocksDB(
             @Value("${rocksdb.name}") String name,
             @Value("${rocksdb.dir}") String dbDir,
+            RocksDbProperties rocksDbProperties,
             List<RocksDbDao> daoList,
             DBOptions dbOptions,
-            TransactionDBOptions transactionDbOptions) throws RocksDBException {
+            TransactionDBOptions transactionDbOptions,
+            Cache blockCache) throws RocksDBException {
         try {
             File dbFile = new File(dbDir, name);
             ArrayList<ColumnFamilyHandle> columnFamilyHandles = new ArrayList<>();
-            TransactionDB transactionDB = TransactionDB.open(dbOptions, transactionDbOptions, dbFile.getAbsolutePath(),
-                    getColumnFamilyDescriptors(daoList), columnFamilyHandles
-            );
-            initDaos(columnFamilyHandles, daoList, transactionDB);
-            return transactionDB;
+            List<ColumnFamilyDescriptor> columnFamilyDescriptors =
+                    getColumnFamilyDescriptors(daoList, rocksDbProperties, blockCache);
+            RocksDB rocksDB;
+            if (rocksDbProperties.getEngine() == RocksDbProperties.Engine.WRITE_BATCH) {
+                rocksDB = RocksDB.open(dbOptions, dbFile.getAbsolutePath(),
+                        columnFamilyDescriptors, columnFamilyHandles
+                );
+            } else if (rocksDbProperties.getEngine() == RocksDbProperties.Engine.OPTIMISTIC_TRANSACTION_DB) {
+                rocksDB = OptimisticTransactionDB.open(dbOptions, dbFile.getAbsolutePath(),
+                        columnFamilyDescriptors, columnFamilyHandles
+                );
+            } else {
+                rocksDB = TransactionDB.open(dbOptions, transactionDbOptions, dbFile.getAbsolutePath(),
+                        columnFamilyDescriptors, columnFamilyHandles
+                );
+            }
+            initDaos(columnFamilyHandles, daoList, rocksDB);
+            return rocksDB;
         } catch (RocksDBException ex) {
             log.error("Error initializing RocksDB, check configurations and permissions, exception: {}, message: {}, " +
                       "stackTrace: {}",
@@ -44,11 +66,15 @@ public class RocksDbConfiguration {
     }
 
     @Bean(destroyMethod = "close")
-    public DBOptions dbOptions() {
+    public DBOptions dbOptions(RocksDbProperties rocksDbProperties) {
         final DBOptions options = new DBOptions();
         options.setCreateIfMissing(true);
         options.setCreateMissingColumnFamilies(true);
         options.setInfoLogLevel(InfoLogLevel.DEBUG_LEVEL);
+        if (rocksDbProperties.getDurability() == RocksDbProperties.Durability.BOUNDED) {
+            // unsynced tail may be torn, recovery stops before it instead of failing or skipping records
+            options.setWalRecoveryMode(WALRecoveryMode.PointInTimeRecovery);
+        }
         return options;
     }
 
@@ -57,16 +83,85 @@ public class RocksDbConfiguration {
         return new TransactionDBOptions();
     }
 
-    private List<ColumnFamilyDescriptor> getColumnFamilyDescriptors(List<RocksDbDao> daoList) {
+    /**
+     * Options below are read-only after creation and shared by all apply threads instead of being
+     * allocated per write. Their classes don't load native library themselves.
+     */
+    @Bean(destroyMethod = "close")
+    public WriteOptions writeOptions(RocksDbProperties rocksDbProperties) {
+        RocksDB.loadLibrary();
+        return new WriteOptions().setSync(rocksDbProperties.getDurability() == RocksDbProperties.Durability.SYNC);
+    }
+
+    @Bean(destroyMethod = "close")
+    public ReadOptions readOptions() {
+        RocksDB.loadLibrary();
+        return new ReadOptions();
+    }
+
+    @Bean(destroyMethod = "close")
+    public TransactionOptions transactionOptions() {
+        RocksDB.loadLibrary();
+        // batch holds plan locks until commit, so lock cycles between consumers must fail fast
+        return new TransactionOptions().setDeadlockDetect(true);
+    }
+
+    @Bean(destroyMethod = "close")
+    public OptimisticTransactionOptions optimisticTransactionOptions() {
+        RocksDB.loadLibrary();
+        return new OptimisticTransactionOptions();
+    }
+
+    @Bean(destroyMethod = "close")
+    public Cache blockCache(RocksDbProperties rocksDbProperties) {
+        RocksDB.loadLibrary();
+        return new LRUCache(rocksDbProperties.getBlockCacheSizeMb() * MB);
+    }
+
+    private List<ColumnFamilyDescriptor> getColumnFamilyDescriptors(
+            List<RocksDbDao> daoList,
+            RocksDbProperties rocksDbProperties,
+            Cache blockCache) {
         List<ColumnFamilyDescriptor> descriptors = daoList.stream()
-                .map(RocksDbDao::getColumnFamilyName)
-                .map(ColumnFamilyDescriptor::new)
+                .map(dao -> dao.getColumnFamilyDescriptor(
+                        createColumnFamilyOptions(rocksDbProperties.getTuning(dao.getTuningProfile()), blockCache)
+                ))
                 .collect(Collectors.toList());
         descriptors.add(new ColumnFamilyDescriptor("default".getBytes()));
         return descriptors;
     }
 
-    private void initDaos(List<ColumnFamilyHandle> columnFamilyHandles, List<RocksDbDao> daoList, TransactionDB rocksDb)
+    private ColumnFamilyOptions createColumnFamilyOptions(RocksDbProperties.Tuning tuning, Cache blockCache) {
+        ColumnFamilyOptions columnFamilyOptions = new ColumnFamilyOptions();
+        columnFamilyObjects.add(columnFamilyOptions);
+        if (tuning == null) {
+            return columnFamilyOptions;
+        }
+        BlockBasedTableConfig tableConfig = new BlockBasedTableConfig()
+                .setBlockCache(blockCache)
+                .setCacheIndexAndFilterBlocks(tuning.isCacheIndexAndFilterBlocks())
+                .setPinL0FilterAndIndexBlocksInCache(tuning.isPinL0FilterAndIndexBlocks());
+        if (tuning.getBloomFilterBitsPerKey() > 0) {
+            BloomFilter bloomFilter = new BloomFilter(tuning.getBloomFilterBitsPerKey(), false);
+            columnFamilyObjects.add(bloomFilter);
+            tableConfig.setFilterPolicy(bloomFilter);
+        }
+        return columnFamilyOptions
+                .setTableFormatConfig(tableConfig)
+                .setCompactionStyle(tuning.getCompactionStyle())
+                .setWriteBufferSize(tuning.getWriteBufferSizeMb() * MB)
+                .setMaxWriteBufferNumber(tuning.getMaxWriteBufferNumber());
+    }
+
+    @PreDestroy
+    public void closeColumnFamilyOptions() {
+        for (int i = columnFamilyObjects.size() - 1; i >= 0; i--) {
+            columnFamilyObjects.get(i).close();
+        }
+        columnFamilyObjects.clear();
+    }
+
+    private void initDaos(List<ColumnFamilyHandle> columnFamilyHandles, List<RocksDbDao> daoList, RocksDB rocksDb)
             throws RocksDBException {
         for (ColumnFamilyHandle columnFamilyHandle : columnFamilyHandles) {
             for (RocksDbDao rocksDbDao : daoList) {
@@ -0,0 +1,165 @@
+package com.rbkmoney.shumaich.config;
+
+import lombok.Getter;
+import lombok.Setter;
+import org.rocksdb.CompactionStyle;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.stereotype.Component;
+
+@Getter
+@Setter
+@Component
+@ConfigurationProperties(prefix = "rocksdb")
+public class RocksDbProperties {
+
+    private Engine engine = Engine.TRANSACTION_DB;
+    /**
+     * Attempts to commit optimistic transaction, including the first one. Conflict of the last attempt
+     * fails apply like any other storage error.
+     */
+    private int conflictAttempts = 3;
+
+    private Durability durability = Durability.SYNC;
+
+    private long walSyncIntervalMs = 100;
+
+    private long walSyncBytes = 4 * 1024 * 1024;
+
+    private BalanceLayout balanceLayout = BalanceLayout.DOCUMENT;
+
+    /**
+     * Block cache shared by column families of all tuned profiles, in place of 8 MB caches RocksDB
+     * creates for every column family by default.
+     */
+    private long blockCacheSizeMb = 64;
+
+    private Tuning pointLookup = Tuning.pointLookup();
+
+    private Tuning writeHeavy = Tuning.writeHeavy();
+
+    private Tuning smallHot = Tuning.smallHot();
+
+    /**
+     * @return tuning of profile or null for column families opened with RocksDB defaults
+     */
+    public Tuning getTuning(TuningProfile tuningProfile) {
+        switch (tuningProfile) {
+            case POINT_LOOKUP:
+                return pointLookup;
+            case WRITE_HEAVY:
+                return writeHeavy;
+            case SMALL_HOT:
+                return smallHot;
+            default:
+                return null;
+        }
+    }
+
+    public enum Engine {
+        /**
+         * Operation logs are applied in pessimistic transactions, every read key is locked until commit.
+         */
+        TRANSACTION_DB,
+        /**
+         * Plain RocksDB, every apply is written as one WriteBatch without locks. Safe only because each
+         * balance and plan segment is written by the single consumer thread owning its partition.
+         */
+        WRITE_BATCH,
+        /**
+         * Operation logs are applied in optimistic transactions: nothing is locked, read keys are validated
+         * on commit and conflicting transaction is retried. Cheaper than locks while contention is low.
+         */
+        OPTIMISTIC_TRANSACTION_DB
+    }
+
+    public enum Durability {
+        /**
+         * Every write of state and offsets is fsynced before it is acknowledged.
+         */
+        SYNC,
+        /**
+         * Writes reach WAL without fsync, WAL is synced every wal-sync-interval-ms or after wal-sync-bytes.
+         * Process crash loses nothing. OS or disk failure loses at most the unsynced tail: WAL is recovered
+         * up to the last consistent point, and state and offsets of a write are in one batch, so stored offsets
+         * never run ahead of state. Consumers resume from stored offsets and apply the lost tail from Kafka again,
+         * which requires retention of operation log to cover it. Clocks issued for lost writes are reported
+         * as not yet applied until the replay reaches them.
+         */
+        BOUNDED
+    }
+
+    public enum BalanceLayout {
+        /**
+         * Balance is one JSON document, every change reads it under lock and writes it back.
+         */
+        DOCUMENT,
+        /**
+         * Amounts are separate 64-bit counters changed by blind merges, without read and without row lock.
+         * Stored data of the other layout is not converted, layout is chosen for a new database.
+         */
+        COUNTERS
+    }
+
+    public enum TuningProfile {
+        DEFAULT,
+        /**
+         * Point reads of short keys, like balances.
+         */
+        POINT_LOOKUP,
+        /**
+         * Keys written and deleted soon after, like plans. More memtables let short-lived keys
+         * be dropped at flush instead of being compacted.
+         */
+        WRITE_HEAVY,
+        /**
+         * Few keys read all the time, like offsets. Index and filter stay in table readers instead of cache.
+         */
+        SMALL_HOT
+    }
+
+    /**
+     * Memtables of a column family take up to write buffer size times their number, 128 MB with RocksDB defaults.
+     * Point lookup profile takes half of it, so write heavy one keeps an extra memtable within the same total.
+     */
+    @Getter
+    @Setter
+    public static class Tuning {
+
+        /**
+         * Whole key bloom filter, 0 disables it.
+         */
+        private int bloomFilterBitsPerKey = 10;
+
+        private boolean cacheIndexAndFilterBlocks = true;
+
+        private boolean pinL0FilterAndIndexBlocks = true;
+
+        private CompactionStyle compactionStyle = CompactionStyle.LEVEL;
+
+        private long writeBufferSizeMb = 64;
+
+        private int maxWriteBufferNumber = 2;
+
+        static Tuning pointLookup() {
+            Tuning tuning = new Tuning();
+            tuning.setWriteBufferSizeMb(32);
+            return tuning;
+        }
+
+        static Tuning writeHeavy() {
+            Tuning tuning = new Tuning();
+            tuning.setMaxWriteBufferNumber(3);
+            return tuning;
+        }
+
+        static Tuning smallHot() {
+            Tuning tuning = new Tuning();
+            tuning.setCacheIndexAndFilterBlocks(false);
+            tuning.setPinL0FilterAndIndexBlocks(false);
+            tuning.setWriteBufferSizeMb(4);
+            return tuning;
+        }
+
+    }
+
+}
@@ -0,0 +1,196 @@
+package com.rbkmoney.shumaich.dao;
+
+import com.rbkmoney.shumaich.config.RocksDbProperties;
+import com.rbkmoney.shumaich.domain.Balance;
+import com.rbkmoney.shumaich.exception.DaoException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.Transaction;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stores every balance amount under its own key as 64-bit counter of built-in uint64add merge operator.
+ * Addition wraps modulo 2^64, so adding two's complement of negative change gives correct signed result.
+ * Currency is stored under its own key too and its presence tells that account exists.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class BalanceCounterDao extends RocksDbDao {
+
+    private static final String COLUMN_FAMILY_NAME = "balance_counter";
+    private static final String MERGE_OPERATOR_NAME = "uint64add";
+
+    private static final byte AMOUNT = 0;
+    private static final byte MIN_AMOUNT = 1;
+    private static final byte MAX_AMOUNT = 2;
+    private static final byte CURRENCY = 3;
+    private static final int KEY_LENGTH = Long.BYTES + 1;
+
+    /**
+     * RocksDB copies key and value arrays on every call, so writes reuse one pair of buffers per thread.
+     */
+    private static final ThreadLocal<byte[]> KEY_BUFFER = ThreadLocal.withInitial(() -> new byte[KEY_LENGTH]);
+    private static final ThreadLocal<byte[]> VALUE_BUFFER = ThreadLocal.withInitial(() -> new byte[Long.BYTES]);
+
+    private final WriteOptions writeOptions;
+
+    @Override
+    public byte[] getColumnFamilyName() {
+        return COLUMN_FAMILY_NAME.getBytes();
+    }
+
+    @Override
+    public RocksDbProperties.TuningProfile getTuningProfile() {
+        return RocksDbProperties.TuningProfile.POINT_LOOKUP;
+    }
+
+    @Override
+    protected void configureColumnFamily(ColumnFamilyOptions columnFamilyOptions) {
+        columnFamilyOptions.setMergeOperatorName(MERGE_OPERATOR_NAME);
+    }
+
+    public Balance get(long accountId) {
+        try {
+            List<byte[]> values = rocksDB.multiGetAsList(
+                    Collections.nCopies(4, columnFamilyHandle),
+                    List.of(
+                            writeKey(new byte[KEY_LENGTH], accountId, CURRENCY),
+                            writeKey(new byte[KEY_LENGTH], accountId, AMOUNT),
+                            writeKey(new byte[KEY_LENGTH], accountId, MIN_AMOUNT),
+                            writeKey(new byte[KEY_LENGTH], accountId, MAX_AMOUNT)
+                    )
+            );
+            if (values.get(0) == null) {
+                return null;
+            }
+            return Balance.builder()
+                    .accountId(accountId)
+                    .currencySymbolicCode(new String(values.get(0), StandardCharsets.UTF_8))
+                    .amount(readCounter(values.get(1)))
+                    .minAmount(readCounter(values.get(2)))
+                    .maxAmount(readCounter(values.get(3)))
+                    .build();
+        } catch (RocksDBException e) {
+            log.error("Can't get balance counters with ID: {}", accountId, e);
+            throw new DaoException("Can't get balance counters with ID: " + accountId, e);
+        }
+    }
+
+    /**
+     * Overwrites counters with amounts of balance, used by snapshots and account creation.
+     */
+    public void put(Balance balance) {
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            putInBatch(writeBatch, balance);
+            rocksDB.write(writeOptions, writeBatch);
+        } catch (RocksDBException e) {
+            log.error("Can't create balance counters with ID: {}", balance.getAccountId(), e);
+            throw new DaoException("Can't create balance counters with ID: " + balance.getAccountId(), e);
+        }
+    }
+
+    public void putInTransaction(Transaction transaction, Balance balance) {
+        long accountId = balance.getAccountId();
+        try {
+            transaction.put(columnFamilyHandle, key(accountId, CURRENCY), currency(balance));
+            transaction.put(columnFamilyHandle, key(accountId, AMOUNT), counter(balance.getAmount()));
+            transaction.put(columnFamilyHandle, key(accountId, MIN_AMOUNT), counter(balance.getMinAmount()));
+            transaction.put(columnFamilyHandle, key(accountId, MAX_AMOUNT), counter(balance.getMaxAmount()));
+        } catch (RocksDBException e) {
+            log.error("Can't update balance counters with ID: {}", accountId, e);
+            throw new DaoException("Can't update balance counters with ID: " + accountId, e);
+        }
+    }
+
+    public void putInBatch(WriteBatch writeBatch, Balance balance) {
+        long accountId = balance.getAccountId();
+        try {
+            writeBatch.put(columnFamilyHandle, key(accountId, CURRENCY), currency(balance));
+            writeBatch.put(columnFamilyHandle, key(accountId, AMOUNT), counter(balance.getAmount()));
+            writeBatch.put(columnFamilyHandle, key(accountId, MIN_AMOUNT), counter(balance.getMinAmount()));
+            writeBatch.put(columnFamilyHandle, key(accountId, MAX_AMOUNT), counter(balance.getMaxAmount()));
+        } catch (RocksDBException e) {
+            log.error("Can't update balance counters in batch with ID: {}", accountId, e);
+            throw new DaoException("Can't update balance counters in batch with ID: " + accountId, e);
+        }
+    }
+
+    /**
+     * Adds amounts of change to stored counters. Merges commute, so keys are not locked: idempotency is
+     * guarded by plan lock and currency is rewritten blindly with the same value.
+     */
+    public void mergeInTransaction(Transaction transaction, Balance change) {
+        long accountId = change.getAccountId();
+        try {
+            transaction.putUntracked(columnFamilyHandle, key(accountId, CURRENCY), currency(change));
+            transaction.mergeUntracked(columnFamilyHandle, key(accountId, AMOUNT), counter(change.getAmount()));
+            transaction.mergeUntracked(columnFamilyHandle, key(accountId, MIN_AMOUNT), counter(change.getMinAmount()));
+            transaction.mergeUntracked(columnFamilyHandle, key(accountId, MAX_AMOUNT), counter(change.getMaxAmount()));
+        } catch (RocksDBException e) {
+            log.error("Can't merge balance counters with ID: {}", accountId, e);
+            throw new DaoException("Can't merge balance counters with ID: " + accountId, e);
+        }
+    }
+
+    public void mergeInBatch(WriteBatch writeBatch, Balance change) {
+        long accountId = change.getAccountId();
+        try {
+            writeBatch.put(columnFamilyHandle, key(accountId, CURRENCY), currency(change));
+            writeBatch.merge(columnFamilyHandle, key(accountId, AMOUNT), counter(change.getAmount()));
+            writeBatch.merge(columnFamilyHandle, key(accountId, MIN_AMOUNT), counter(change.getMinAmount()));
+            writeBatch.merge(columnFamilyHandle, key(accountId, MAX_AMOUNT), counter(change.getMaxAmount()));
+        } catch (RocksDBException e) {
+            log.error("Can't merge balance counters in batch with ID: {}", accountId, e);
+            throw new DaoException("Can't merge balance counters in batch with ID: " + accountId, e);
+        }
+    }
+
+    private static byte[] key(long accountId, byte field) {
+        return writeKey(KEY_BUFFER.get(), accountId, field);
+    }
+
+    private static byte[] writeKey(byte[] key, long accountId, byte field) {
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            key[i] = (byte) accountId;
+            accountId >>= Byte.SIZE;
+        }
+        key[Long.BYTES] = field;
+        return key;
+    }
+
+    private static byte[] currency(Balance balance) {
+        return balance.getCurrencySymbolicCode().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Merge operator reads counters as fixed64, which is little-endian.
+     */
+    private static byte[] counter(long value) {
+        byte[] buffer = VALUE_BUFFER.get();
+        for (int i = 0; i < Long.BYTES; i++) {
+            buffer[i] = (byte) value;
+            value >>= Byte.SIZE;
+        }
+        return buffer;
+    }
+
+    private static long readCounter(byte[] value) {
+        if (value == null) {
+            return 0L;
+        }
+        long counter = 0L;
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            counter = (counter << Byte.SIZE) | (value[i] & 0xFF);
+        }
+        return counter;
+    }
+}
@@ -1,6 +1,6 @@
 package com.rbkmoney.shumaich.dao;
 
-import com.google.common.primitives.Longs;
+import com.rbkmoney.shumaich.config.RocksDbProperties;
 import com.rbkmoney.shumaich.converter.CommonConverter;
 import com.rbkmoney.shumaich.domain.Balance;
 import com.rbkmoney.shumaich.exception.DaoException;
@@ -9,6 +9,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.rocksdb.ReadOptions;
 import org.rocksdb.RocksDBException;
 import org.rocksdb.Transaction;
+import org.rocksdb.WriteBatch;
 import org.springframework.stereotype.Component;
 
 @Slf4j
@@ -17,17 +18,34 @@ import org.springframework.stereotype.Component;
 public class BalanceDao extends RocksDbDao {
 
     private static final String COLUMN_FAMILY_NAME = "balance";
+    /**
+     * RocksDB copies key arrays on every call, so one buffer per thread is enough for account keys.
+     */
+    private static final ThreadLocal<byte[]> KEY_BUFFER = ThreadLocal.withInitial(() -> new byte[Long.BYTES]);
+
+    private final ReadOptions readOptions;
+    private final BalanceCounterDao balanceCounterDao;
+    private final RocksDbProperties rocksDbProperties;
 
     @Override
     public byte[] getColumnFamilyName() {
         return COLUMN_FAMILY_NAME.getBytes();
     }
 
+    @Override
+    public RocksDbProperties.TuningProfile getTuningProfile() {
+        return RocksDbProperties.TuningProfile.POINT_LOOKUP;
+    }
+
     public void put(Balance balance) {
+        if (isCounters()) {
+            balanceCounterDao.put(balance);
+            return;
+        }
         try {
             rocksDB.put(
                     columnFamilyHandle,
-                    Longs.toByteArray(balance.getAccountId()),
+                    toKey(balance.getAccountId()),
                     CommonConverter.toBytes(balance)
             );
         } catch (RocksDBException e) {
@@ -36,10 +54,13 @@ public class BalanceDao extends RocksDbDao {
         }
     }
 
-    public Balance get(Long accountId) {
+    public Balance get(long accountId) {
+        if (isCounters()) {
+            return balanceCounterDao.get(accountId);
+        }
         try {
             return CommonConverter.fromBytes(
-                    rocksDB.get(columnFamilyHandle, Longs.toByteArray(accountId)),
+                    rocksDB.get(columnFamilyHandle, toKey(accountId)),
                     Balance.class
             );
         } catch (RocksDBException e) {
@@ -48,10 +69,17 @@ public class BalanceDao extends RocksDbDao {
         }
     }
 
-    public Balance getForUpdate(Transaction transaction, Long accountId) {
-        try (ReadOptions readOptions = new ReadOptions()) {
-            return CommonConverter.fromBytes(
-                    transaction.get(columnFamilyHandle, readOptions, Longs.toByteArray(accountId)), Balance.class);
+    /**
+     * Optimistic transaction validates only keys read for update, so the read is tracked there. Pessimistic
+     * transaction reads without lock as before, the row is locked by the write: balance of an account
+     * is written only by the consumer owning its partition.
+     */
+    public Balance getForUpdate(Transaction transaction, long accountId) {
+        try {
+            byte[] value = rocksDbProperties.getEngine() == RocksDbProperties.Engine.OPTIMISTIC_TRANSACTION_DB
+                    ? transaction.getForUpdate(readOptions, columnFamilyHandle, toKey(accountId), true)
+                    : transaction.get(columnFamilyHandle, readOptions, toKey(accountId));
+            return CommonConverter.fromBytes(value, Balance.class);
         } catch (RocksDBException e) {
             log.error("Can't get balance for update with ID: {}", accountId, e);
             throw new DaoException("Can't get balance for update with ID: " + accountId, e);
@@ -59,10 +87,14 @@ public class BalanceDao extends RocksDbDao {
     }
 
     public void putInTransaction(Transaction transaction, Balance balance) {
+        if (isCounters()) {
+            balanceCounterDao.putInTransaction(transaction, balance);
+            return;
+        }
         try {
             transaction.put(
                     columnFamilyHandle,
-                    Longs.toByteArray(balance.getAccountId()),
+                    toKey(balance.getAccountId()),
                     CommonConverter.toBytes(balance)
             );
         } catch (RocksDBException e) {
@@ -70,4 +102,56 @@ public class BalanceDao extends RocksDbDao {
             throw new DaoException("Can't update balance with ID: " + balance.getAccountId(), e);
         }
     }
+
+    public void putInBatch(WriteBatch writeBatch, Balance balance) {
+        if (isCounters()) {
+            balanceCounterDao.putInBatch(writeBatch, balance);
+            return;
+        }
+        try {
+            writeBatch.put(
+                    columnFamilyHandle,
+                    toKey(balance.getAccountId()),
+                    CommonConverter.toBytes(balance)
+            );
+        } catch (RocksDBException e) {
+            log.error("Can't update balance in batch with ID: {}", balance.getAccountId(), e);
+            throw new DaoException("Can't update balance in batch with ID: " + balance.getAccountId(), e);
+        }
+    }
+
+    /**
+     * Adds amounts of change to balance without reading it, supported only by counters layout.
+     */
+    public void mergeInTransaction(Transaction transaction, Balance change) {
+        checkCounters();
+        balanceCounterDao.mergeInTransaction(transaction, change);
+    }
+
+    public void mergeInBatch(WriteBatch writeBatch, Balance change) {
+        checkCounters();
+        balanceCounterDao.mergeInBatch(writeBatch, change);
+    }
+
+    private boolean isCounters() {
+        return rocksDbProperties.getBalanceLayout() == RocksDbProperties.BalanceLayout.COUNTERS;
+    }
+
+    private void checkCounters() {
+        if (!isCounters()) {
+            throw new IllegalStateException("Balance merge needs counters layout");
+        }
+    }
+
+    /**
+     * Same big-endian encoding as {@code Longs.toByteArray}, so stored keys are not changed.
+     */
+    private static byte[] toKey(long accountId) {
+        byte[] key = KEY_BUFFER.get();
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            key[i] = (byte) accountId;
+            accountId >>= Byte.SIZE;
+        }
+        return key;
+    }
 }
@@ -1,10 +1,12 @@
 package com.rbkmoney.shumaich.dao;
 
+import com.rbkmoney.shumaich.config.RocksDbProperties;
 import com.rbkmoney.shumaich.converter.CommonConverter;
 import com.rbkmoney.shumaich.exception.DaoException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.rocksdb.RocksDBException;
+import org.rocksdb.Transaction;
 import org.rocksdb.WriteBatch;
 import org.rocksdb.WriteOptions;
 import org.springframework.stereotype.Component;
@@ -21,6 +23,11 @@ public class KafkaOffsetDao extends RocksDbDao {
         return COLUMN_FAMILY_NAME.getBytes();
     }
 
+    @Override
+    public RocksDbProperties.TuningProfile getTuningProfile() {
+        return RocksDbProperties.TuningProfile.SMALL_HOT;
+    }
+
     public Long get(String topicPartition) {
         try {
             return CommonConverter.fromBytes(rocksDB.get(columnFamilyHandle, topicPartition.getBytes()), Long.class);
@@ -30,6 +37,15 @@ public class KafkaOffsetDao extends RocksDbDao {
         }
     }
 
+    public void putInTransaction(Transaction transaction, String topicPartition, Long offset) {
+        try {
+            transaction.put(columnFamilyHandle, topicPartition.getBytes(), CommonConverter.toBytes(offset));
+        } catch (RocksDBException e) {
+            log.error("Can't save kafkaOffset topicPartition with ID: {}", topicPartition, e);
+            throw new DaoException("Can't save kafkaOffset topicPartition with ID: " + topicPartition, e);
+        }
+    }
+
     public void putBatch(WriteOptions writeOptions, WriteBatch writeBatch) throws RocksDBException {
         rocksDB.write(writeOptions, writeBatch);
     }
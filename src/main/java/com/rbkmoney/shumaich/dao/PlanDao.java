@@ -1,28 +1,58 @@
 package com.rbkmoney.shumaich.dao;
 
-
+import com.rbkmoney.shumaich.config.RocksDbProperties;
 import com.rbkmoney.shumaich.converter.CommonConverter;
 import com.rbkmoney.shumaich.domain.Plan;
 import com.rbkmoney.shumaich.exception.DaoException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.rocksdb.ColumnFamilyOptions;
 import org.rocksdb.ReadOptions;
 import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
 import org.rocksdb.Transaction;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
 import org.springframework.stereotype.Component;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
 @Slf4j
 @Component
 @RequiredArgsConstructor
 public class PlanDao extends RocksDbDao {
 
     private static final String COLUMN_FAMILY_NAME = "plan";
+    // plan ids are rarely shorter, keys of shorter ones stay out of prefix filters and are scanned in total order
+    private static final int PREFIX_LENGTH = 8;
+    private static final double MEMTABLE_PREFIX_BLOOM_SIZE_RATIO = 0.1;
+
+    private final ReadOptions readOptions;
+    private final WriteOptions writeOptions;
 
     @Override
     public byte[] getColumnFamilyName() {
         return COLUMN_FAMILY_NAME.getBytes();
     }
 
+    @Override
+    public RocksDbProperties.TuningProfile getTuningProfile() {
+        return RocksDbProperties.TuningProfile.WRITE_HEAVY;
+    }
+
+    /**
+     * Segments of a plan share its id as key prefix, so prefix scan of a plan skips files and memtables
+     * without its prefix by bloom filter instead of reading them.
+     */
+    @Override
+    protected void configureColumnFamily(ColumnFamilyOptions columnFamilyOptions) {
+        columnFamilyOptions
+                .useFixedLengthPrefixExtractor(PREFIX_LENGTH)
+                .setMemtablePrefixBloomSizeRatio(MEMTABLE_PREFIX_BLOOM_SIZE_RATIO);
+    }
+
     public Plan get(String planId) {
         try {
             return CommonConverter.fromBytes(rocksDB.get(columnFamilyHandle, planId.getBytes()), Plan.class);
@@ -32,8 +62,30 @@ public class PlanDao extends RocksDbDao {
         }
     }
 
+    /**
+     * @return plans with keys starting with prefix, read without locks
+     */
+    public Map<String, Plan> getByPrefix(String prefix) {
+        Map<String, Plan> plans = new HashMap<>();
+        byte[] prefixBytes = prefix.getBytes();
+        // prefix filters apply only to prefixes of extractor length, shorter one may match several of them
+        try (ReadOptions prefixReadOptions = prefixBytes.length >= PREFIX_LENGTH
+                ? new ReadOptions().setPrefixSameAsStart(true)
+                : new ReadOptions().setTotalOrderSeek(true);
+             RocksIterator iterator = rocksDB.newIterator(columnFamilyHandle, prefixReadOptions)) {
+            for (iterator.seek(prefixBytes); iterator.isValid(); iterator.next()) {
+                String key = new String(iterator.key());
+                if (!key.startsWith(prefix)) {
+                    break;
+                }
+                plans.put(key, CommonConverter.fromBytes(iterator.value(), Plan.class));
+            }
+        }
+        return plans;
+    }
+
     public Plan getForUpdate(Transaction transaction, String planId) {
-        try (ReadOptions readOptions = new ReadOptions()) {
+        try {
             return CommonConverter.fromBytes(
                     transaction.getForUpdate(readOptions, columnFamilyHandle, planId.getBytes(), true),
                     Plan.class
@@ -53,12 +105,42 @@ public class PlanDao extends RocksDbDao {
         }
     }
 
-    public void delete(String planId) {
+    public void putInBatch(WriteBatch writeBatch, String planId, Plan plan) {
+        try {
+            writeBatch.put(columnFamilyHandle, planId.getBytes(), CommonConverter.toBytes(plan));
+        } catch (RocksDBException e) {
+            log.error("Can't save plan in batch with id: {}", planId, e);
+            throw new DaoException("Can't save plan in batch with id: " + planId, e);
+        }
+    }
+
+    public void delete(Collection<String> planIds) {
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            for (String planId : planIds) {
+                writeBatch.delete(columnFamilyHandle, planId.getBytes());
+            }
+            rocksDB.write(writeOptions, writeBatch);
+        } catch (RocksDBException e) {
+            log.error("Can't delete plans with ids: {}", planIds, e);
+            throw new DaoException("Can't delete plans with ids: " + planIds, e);
+        }
+    }
+
+    public void deleteInTransaction(Transaction transaction, String planId) {
+        try {
+            transaction.delete(columnFamilyHandle, planId.getBytes());
+        } catch (RocksDBException e) {
+            log.error("Can't delete plan in transaction with id: {}", planId, e);
+            throw new DaoException("Can't delete plan in transaction with id: " + planId, e);
+        }
+    }
+
+    public void deleteInBatch(WriteBatch writeBatch, String planId) {
         try {
-            rocksDB.delete(columnFamilyHandle, planId.getBytes());
+            writeBatch.delete(columnFamilyHandle, planId.getBytes());
         } catch (RocksDBException e) {
-            log.error("Can't delete plan with id: {}", planId, e);
-            throw new DaoException("Can't delete plan with id: " + planId, e);
+            log.error("Can't delete plan in batch with id: {}", planId, e);
+            throw new DaoException("Can't delete plan in batch with id: " + planId, e);
         }
     }
 }
@@ -0,0 +1,190 @@
+package com.rbkmoney.shumaich.dao;
+
+import com.rbkmoney.shumaich.config.RocksDbProperties;
+import com.rbkmoney.shumaich.domain.PlanExpiry;
+import com.rbkmoney.shumaich.exception.DaoException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksIterator;
+import org.rocksdb.Transaction;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps expiry index of plans in three key spaces. Schedule keys are ordered by big-endian deadline, so due plans
+ * are read by one seek. Every deadline change replaces the schedule key of the previous deadline, keys left behind
+ * by concurrent changes are dropped when they come due. Clock of the last registered final operation tells whether
+ * it is applied.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class PlanExpiryDao extends RocksDbDao {
+
+    private static final String COLUMN_FAMILY_NAME = "plan_expiry";
+
+    private static final byte SCHEDULE = 'S';
+    private static final byte DEADLINE = 'D';
+    private static final byte FINAL_OPERATION = 'F';
+
+    private final WriteOptions writeOptions;
+
+    @Override
+    public byte[] getColumnFamilyName() {
+        return COLUMN_FAMILY_NAME.getBytes();
+    }
+
+    @Override
+    public RocksDbProperties.TuningProfile getTuningProfile() {
+        return RocksDbProperties.TuningProfile.WRITE_HEAVY;
+    }
+
+    /**
+     * Keys are written untracked: every writer only moves deadline forward, so they need no locks.
+     */
+    public void scheduleInTransaction(Transaction transaction, String planId, long deadlineMs) {
+        try {
+            Long previousDeadlineMs = getDeadline(planId);
+            if (previousDeadlineMs != null) {
+                transaction.deleteUntracked(columnFamilyHandle, scheduleKey(previousDeadlineMs, planId));
+            }
+            transaction.putUntracked(columnFamilyHandle, scheduleKey(deadlineMs, planId), new byte[0]);
+            transaction.putUntracked(columnFamilyHandle, key(DEADLINE, planId), deadline(deadlineMs));
+        } catch (RocksDBException e) {
+            log.error("Can't schedule plan expiry with id: {}", planId, e);
+            throw new DaoException("Can't schedule plan expiry with id: " + planId, e);
+        }
+    }
+
+    public void scheduleInBatch(WriteBatch writeBatch, String planId, long deadlineMs) {
+        try {
+            Long previousDeadlineMs = getDeadline(planId);
+            if (previousDeadlineMs != null) {
+                writeBatch.delete(columnFamilyHandle, scheduleKey(previousDeadlineMs, planId));
+            }
+            writeBatch.put(columnFamilyHandle, scheduleKey(deadlineMs, planId), new byte[0]);
+            writeBatch.put(columnFamilyHandle, key(DEADLINE, planId), deadline(deadlineMs));
+        } catch (RocksDBException e) {
+            log.error("Can't schedule plan expiry in batch with id: {}", planId, e);
+            throw new DaoException("Can't schedule plan expiry in batch with id: " + planId, e);
+        }
+    }
+
+    public void schedule(String planId, long deadlineMs) {
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            scheduleInBatch(writeBatch, planId, deadlineMs);
+            rocksDB.write(writeOptions, writeBatch);
+        } catch (RocksDBException e) {
+            log.error("Can't schedule plan expiry with id: {}", planId, e);
+            throw new DaoException("Can't schedule plan expiry with id: " + planId, e);
+        }
+    }
+
+    public Long getDeadline(String planId) {
+        try {
+            byte[] value = rocksDB.get(columnFamilyHandle, key(DEADLINE, planId));
+            return value == null ? null : ByteBuffer.wrap(value).getLong();
+        } catch (RocksDBException e) {
+            log.error("Can't get plan expiry deadline with id: {}", planId, e);
+            throw new DaoException("Can't get plan expiry deadline with id: " + planId, e);
+        }
+    }
+
+    public void putFinalOperationClock(String planId, String clock) {
+        try {
+            rocksDB.put(columnFamilyHandle, writeOptions, key(FINAL_OPERATION, planId),
+                    clock.getBytes(StandardCharsets.UTF_8));
+        } catch (RocksDBException e) {
+            log.error("Can't save final operation clock of plan with id: {}", planId, e);
+            throw new DaoException("Can't save final operation clock of plan with id: " + planId, e);
+        }
+    }
+
+    public String getFinalOperationClock(String planId) {
+        try {
+            byte[] value = rocksDB.get(columnFamilyHandle, key(FINAL_OPERATION, planId));
+            return value == null ? null : new String(value, StandardCharsets.UTF_8);
+        } catch (RocksDBException e) {
+            log.error("Can't get final operation clock of plan with id: {}", planId, e);
+            throw new DaoException("Can't get final operation clock of plan with id: " + planId, e);
+        }
+    }
+
+    /**
+     * @return schedule entries with deadline not later than given time, earliest first
+     */
+    public List<PlanExpiry> getDue(long nowMs, int limit) {
+        List<PlanExpiry> due = new ArrayList<>();
+        try (RocksIterator iterator = rocksDB.newIterator(columnFamilyHandle)) {
+            for (iterator.seek(new byte[]{SCHEDULE}); iterator.isValid() && due.size() < limit; iterator.next()) {
+                byte[] key = iterator.key();
+                if (key[0] != SCHEDULE) {
+                    break;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(key, 1, key.length - 1);
+                long deadlineMs = buffer.getLong();
+                if (deadlineMs > nowMs) {
+                    break;
+                }
+                due.add(new PlanExpiry(deadlineMs, new String(
+                        key, buffer.position(), buffer.remaining(), StandardCharsets.UTF_8
+                )));
+            }
+        }
+        return due;
+    }
+
+    public void deleteScheduled(PlanExpiry planExpiry) {
+        try {
+            rocksDB.delete(columnFamilyHandle, writeOptions,
+                    scheduleKey(planExpiry.getDeadlineMs(), planExpiry.getPlanId()));
+        } catch (RocksDBException e) {
+            log.error("Can't delete plan expiry schedule: {}", planExpiry, e);
+            throw new DaoException("Can't delete plan expiry schedule: " + planExpiry, e);
+        }
+    }
+
+    /**
+     * Removes the due schedule entry together with deadline and final operation clock of its plan.
+     */
+    public void delete(PlanExpiry planExpiry) {
+        String planId = planExpiry.getPlanId();
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            writeBatch.delete(columnFamilyHandle, scheduleKey(planExpiry.getDeadlineMs(), planId));
+            writeBatch.delete(columnFamilyHandle, key(DEADLINE, planId));
+            writeBatch.delete(columnFamilyHandle, key(FINAL_OPERATION, planId));
+            rocksDB.write(writeOptions, writeBatch);
+        } catch (RocksDBException e) {
+            log.error("Can't delete plan expiry with id: {}", planId, e);
+            throw new DaoException("Can't delete plan expiry with id: " + planId, e);
+        }
+    }
+
+    private static byte[] scheduleKey(long deadlineMs, String planId) {
+        byte[] id = planId.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + Long.BYTES + id.length)
+                .put(SCHEDULE)
+                .putLong(deadlineMs)
+                .put(id)
+                .array();
+    }
+
+    private static byte[] key(byte keySpace, String planId) {
+        byte[] id = planId.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(1 + id.length)
+                .put(keySpace)
+                .put(id)
+                .array();
+    }
+
+    private static byte[] deadline(long deadlineMs) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(deadlineMs).array();
+    }
+}
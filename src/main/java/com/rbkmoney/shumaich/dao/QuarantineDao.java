@@ -0,0 +1,44 @@
+package com.rbkmoney.shumaich.dao;
+
+import com.rbkmoney.shumaich.converter.CommonConverter;
+import com.rbkmoney.shumaich.domain.QuarantinedRecord;
+import com.rbkmoney.shumaich.exception.DaoException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.springframework.stereotype.Component;
+
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class QuarantineDao extends RocksDbDao {
+
+    private static final String COLUMN_FAMILY_NAME = "quarantine";
+
+    @Override
+    public byte[] getColumnFamilyName() {
+        return COLUMN_FAMILY_NAME.getBytes();
+    }
+
+    public QuarantinedRecord get(String recordId) {
+        try {
+            return CommonConverter.fromBytes(
+                    rocksDB.get(columnFamilyHandle, recordId.getBytes()),
+                    QuarantinedRecord.class
+            );
+        } catch (RocksDBException e) {
+            log.error("Can't get quarantined record with id: {}", recordId, e);
+            throw new DaoException("Can't get quarantined record with id: " + recordId, e);
+        }
+    }
+
+    public void putInBatch(WriteBatch writeBatch, String recordId, QuarantinedRecord quarantinedRecord) {
+        try {
+            writeBatch.put(columnFamilyHandle, recordId.getBytes(), CommonConverter.toBytes(quarantinedRecord));
+        } catch (RocksDBException e) {
+            log.error("Can't save quarantined record with id: {}", recordId, e);
+            throw new DaoException("Can't save quarantined record with id: " + recordId, e);
+        }
+    }
+}
@@ -1,17 +1,40 @@
 package com.rbkmoney.shumaich.dao;
 
+import com.rbkmoney.shumaich.config.RocksDbProperties;
+import org.rocksdb.ColumnFamilyDescriptor;
 import org.rocksdb.ColumnFamilyHandle;
-import org.rocksdb.TransactionDB;
+import org.rocksdb.ColumnFamilyOptions;
+import org.rocksdb.RocksDB;
+
+import javax.annotation.PreDestroy;
 
 public abstract class RocksDbDao {
 
     protected ColumnFamilyHandle columnFamilyHandle;
 
-    protected TransactionDB rocksDB;
+    protected RocksDB rocksDB;
+
+    private ColumnFamilyOptions columnFamilyOptions;
 
     public abstract byte[] getColumnFamilyName();
 
-    public void initDao(ColumnFamilyHandle columnFamilyHandle, TransactionDB rocksDB) {
+    public RocksDbProperties.TuningProfile getTuningProfile() {
+        return RocksDbProperties.TuningProfile.DEFAULT;
+    }
+
+    /**
+     * Options must outlive the database, so they are closed with the dao, which is destroyed after RocksDB bean.
+     */
+    public ColumnFamilyDescriptor getColumnFamilyDescriptor(ColumnFamilyOptions columnFamilyOptions) {
+        this.columnFamilyOptions = columnFamilyOptions;
+        configureColumnFamily(columnFamilyOptions);
+        return new ColumnFamilyDescriptor(getColumnFamilyName(), columnFamilyOptions);
+    }
+
+    protected void configureColumnFamily(ColumnFamilyOptions columnFamilyOptions) {
+    }
+
+    public void initDao(ColumnFamilyHandle columnFamilyHandle, RocksDB rocksDB) {
         this.columnFamilyHandle = columnFamilyHandle;
         this.rocksDB = rocksDB;
     }
@@ -19,4 +42,11 @@ public abstract class RocksDbDao {
     public ColumnFamilyHandle getColumnFamilyHandle() {
         return columnFamilyHandle;
     }
+
+    @PreDestroy
+    public void closeColumnFamilyOptions() {
+        if (columnFamilyOptions != null) {
+            columnFamilyOptions.close();
+        }
+    }
 }
@@ -10,9 +10,9 @@ import lombok.NoArgsConstructor;
 @NoArgsConstructor
 @AllArgsConstructor
 public class Balance {
-    private Long accountId;
+    private long accountId;
     private String currencySymbolicCode;
-    private Long amount;
-    private Long minAmount;
-    private Long maxAmount;
+    private long amount;
+    private long minAmount;
+    private long maxAmount;
 }
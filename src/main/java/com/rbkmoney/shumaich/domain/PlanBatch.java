@@ -1,11 +1,13 @@
 package com.rbkmoney.shumaich.domain;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.util.Map;
 import java.util.Set;
 
 @Data
@@ -16,6 +18,11 @@ public class PlanBatch {
     private Set<Long> sequencesArrived;
     private Long sequencesTotal;
     private Long batchHash;
+    /**
+     * Signed amounts of hold operations by sequence, so that abandoned hold can be rolled back without its postings.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Map<Long, Long> sequenceAmounts;
 
     public boolean containsSequenceValue(Long num) {
         return sequencesArrived.contains(num);
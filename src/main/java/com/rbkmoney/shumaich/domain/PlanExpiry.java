@@ -0,0 +1,11 @@
+package com.rbkmoney.shumaich.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+@Data
+@AllArgsConstructor
+public class PlanExpiry {
+    private long deadlineMs;
+    private String planId;
+}
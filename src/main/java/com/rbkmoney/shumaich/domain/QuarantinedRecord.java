@@ -0,0 +1,19 @@
+package com.rbkmoney.shumaich.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class QuarantinedRecord {
+    private String topic;
+    private Integer partition;
+    private Long offset;
+    private String value;
+    private String error;
+    private Long quarantinedAtMs;
+}
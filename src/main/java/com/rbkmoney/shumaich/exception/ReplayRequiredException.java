@@ -0,0 +1,12 @@
+package com.rbkmoney.shumaich.exception;
+
+/**
+ * In-memory state doesn't match consumed records, consumer has to restart from the stored offset.
+ */
+public class ReplayRequiredException extends RuntimeException {
+
+    public ReplayRequiredException(String message) {
+        super(message);
+    }
+
+}
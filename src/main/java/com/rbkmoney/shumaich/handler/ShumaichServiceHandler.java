@@ -4,6 +4,7 @@ import com.rbkmoney.damsel.shumaich.*;
 import com.rbkmoney.shumaich.exception.*;
 import com.rbkmoney.shumaich.service.BalanceService;
 import com.rbkmoney.shumaich.service.ClockService;
+import com.rbkmoney.shumaich.service.PartitionOwnershipService;
 import com.rbkmoney.shumaich.service.RequestRegistrationService;
 import com.rbkmoney.shumaich.utils.MdcUtils;
 import lombok.RequiredArgsConstructor;
@@ -23,6 +24,7 @@ public class ShumaichServiceHandler implements AccounterSrv.Iface {
     private final ClockService clockService;
     private final RequestRegistrationService service;
     private final BalanceService balanceService;
+    private final PartitionOwnershipService partitionOwnershipService;
 
     @Override
     public Clock hold(PostingPlanChange postingPlanChange, Clock clock) throws TException {
@@ -52,7 +54,7 @@ public class ShumaichServiceHandler implements AccounterSrv.Iface {
         try {
             MdcUtils.setMdc(postingPlan);
             log.info("Received commit operation");
-            clockService.hardCheckClockTimeline(clock);
+            clockService.hardCheckClockTimeline(clock, partitionOwnershipService::isOwned);
             return service.registerFinalOp(postingPlan, OperationType.COMMIT);
         } catch (NotReadyException e) {
             log.info(HOLD_IS_NOT_READ_YET, e);
@@ -77,7 +79,7 @@ public class ShumaichServiceHandler implements AccounterSrv.Iface {
         try {
             MdcUtils.setMdc(postingPlan);
             log.info("Received rollback operation");
-            clockService.hardCheckClockTimeline(clock);
+            clockService.hardCheckClockTimeline(clock, partitionOwnershipService::isOwned);
             return service.registerFinalOp(postingPlan, OperationType.ROLLBACK);
         } catch (NotReadyException e) {
             log.info(HOLD_IS_NOT_READ_YET, e);
@@ -101,6 +103,7 @@ public class ShumaichServiceHandler implements AccounterSrv.Iface {
     public Balance getBalanceByID(long accountId, Clock clock) throws TException {
         try {
             MdcUtils.setMdc(accountId);
+            partitionOwnershipService.checkOwned(accountId);
             clockService.softCheckClockTimeline(clock);
             return balanceService.getBalance(accountId).setClock(clock); //todo добавить настоящий "последний" клок?
         } catch (NotReadyException e) {
@@ -121,6 +124,7 @@ public class ShumaichServiceHandler implements AccounterSrv.Iface {
     public Account getAccountByID(long accountId, Clock clock) throws TException {
         try {
             MdcUtils.setMdc(accountId);
+            partitionOwnershipService.checkOwned(accountId);
             clockService.softCheckClockTimeline(clock);
             return balanceService.getAccount(accountId);
         } catch (NotReadyException e) {
@@ -0,0 +1,65 @@
+package com.rbkmoney.shumaich.kafka;
+
+import com.rbkmoney.shumaich.config.ApplyProperties;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.RocksDB;
+import org.springframework.stereotype.Component;
+
+/**
+ * Keeps apply batches near target latency. Batch limit grows while batches are full and fast, as in replay
+ * after downtime, and halves when they get slow. Stalled RocksDB makes applying wait instead of piling up writes.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class ApplyFlowControl {
+
+    private static final String IS_WRITE_STOPPED = "rocksdb.is-write-stopped";
+    private static final String ACTUAL_DELAYED_WRITE_RATE = "rocksdb.actual-delayed-write-rate";
+    private static final String ESTIMATE_PENDING_COMPACTION_BYTES = "rocksdb.estimate-pending-compaction-bytes";
+
+    private final ApplyProperties applyProperties;
+    private final RocksDB rocksDB;
+
+    public boolean isEnabled() {
+        return flowControl().isEnabled();
+    }
+
+    public int initialBatchLimit() {
+        return flowControl().getMaxBatchSize();
+    }
+
+    public int nextBatchLimit(int batchLimit, int batchSize, long latencyMs) {
+        ApplyProperties.FlowControl flowControl = flowControl();
+        if (latencyMs > flowControl.getTargetLatencyMs()) {
+            return Math.max(flowControl.getMinBatchSize(), batchLimit / 2);
+        }
+        if (batchSize >= batchLimit && latencyMs < flowControl.getTargetLatencyMs() / 2) {
+            return Math.min(flowControl.getMaxBatchSize(), batchLimit + Math.max(batchLimit / 4, 1));
+        }
+        return batchLimit;
+    }
+
+    public boolean isWriteStalled() {
+        try {
+            return rocksDB.getAggregatedLongProperty(IS_WRITE_STOPPED) > 0
+                   || rocksDB.getAggregatedLongProperty(ACTUAL_DELAYED_WRITE_RATE) > 0
+                   || rocksDB.getAggregatedLongProperty(ESTIMATE_PENDING_COMPACTION_BYTES)
+                      > flowControl().getPendingCompactionBytesLimit();
+        } catch (RocksDBException e) {
+            log.warn("Can't read RocksDB write stall properties", e);
+            return false;
+        }
+    }
+
+    public long getStallBackoffMs() {
+        return flowControl().getStallBackoffMs();
+    }
+
+    private ApplyProperties.FlowControl flowControl() {
+        return applyProperties.getFlowControl();
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.rbkmoney.shumaich.kafka;
+
+import com.rbkmoney.shumaich.config.ApplyProperties;
+import com.rbkmoney.shumaich.exception.ReplayRequiredException;
+import com.rbkmoney.shumaich.service.QuarantineService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.springframework.retry.backoff.BackOffInterruptedException;
+import org.springframework.retry.backoff.ExponentialBackOffPolicy;
+import org.springframework.retry.policy.SimpleRetryPolicy;
+import org.springframework.retry.support.RetryTemplate;
+import org.springframework.stereotype.Component;
+
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Retries single record with backoff after its batch has failed, so one transient error like lock timeout
+ * doesn't restart consumer and re-poll the whole batch.
+ */
+@Slf4j
+@Component
+public class ApplyRetry {
+
+    private final ApplyProperties applyProperties;
+    private final QuarantineService quarantineService;
+    private final RetryTemplate retryTemplate;
+    private final Counter retriesCounter;
+
+    public ApplyRetry(
+            ApplyProperties applyProperties,
+            QuarantineService quarantineService,
+            MeterRegistry meterRegistry) {
+        checkQuarantine(applyProperties);
+        this.applyProperties = applyProperties;
+        this.quarantineService = quarantineService;
+        this.retryTemplate = buildRetryTemplate(applyProperties.getRetry());
+        this.retriesCounter = meterRegistry.counter("shumaich.apply.retries");
+    }
+
+    public <K, V> void apply(ConsumerRecord<K, V> record, Consumer<ConsumerRecord<K, V>> applier) {
+        try {
+            retryTemplate.execute(context -> {
+                if (context.getRetryCount() > 0) {
+                    log.warn("Retrying record, topic: {}, partition: {}, offset: {}, attempt: {}",
+                            record.topic(), record.partition(), record.offset(), context.getRetryCount() + 1);
+                    retriesCounter.increment();
+                }
+                applier.accept(record);
+                return null;
+            });
+        } catch (BackOffInterruptedException | ReplayRequiredException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            if (!applyProperties.getRetry().isQuarantine()) {
+                throw e;
+            }
+            quarantineService.quarantine(record, e);
+        }
+    }
+
+    /**
+     * Quarantine moves stored offset past the failed record, while IN_MEMORY mode keeps records applied since
+     * the last snapshot only in memory and drops them on failure. Reloaded from the snapshot, partition state
+     * would resume after the quarantined record and lose them.
+     */
+    private static void checkQuarantine(ApplyProperties applyProperties) {
+        if (applyProperties.getRetry().isQuarantine() && applyProperties.getMode() == ApplyProperties.Mode.IN_MEMORY) {
+            throw new IllegalStateException("Quarantine is not supported in IN_MEMORY apply mode");
+        }
+    }
+
+    private RetryTemplate buildRetryTemplate(ApplyProperties.Retry retry) {
+        // missing records can't be fixed by retry, only by consumer restart from the stored offset
+        SimpleRetryPolicy retryPolicy = new SimpleRetryPolicy(
+                retry.getMaxAttempts(), Map.of(ReplayRequiredException.class, false), false, true
+        );
+
+        ExponentialBackOffPolicy backOffPolicy = new ExponentialBackOffPolicy();
+        backOffPolicy.setInitialInterval(retry.getInitialBackoffMs());
+        backOffPolicy.setMaxInterval(retry.getMaxBackoffMs());
+
+        RetryTemplate template = new RetryTemplate();
+        template.setRetryPolicy(retryPolicy);
+        template.setBackOffPolicy(backOffPolicy);
+        return template;
+    }
+
+}
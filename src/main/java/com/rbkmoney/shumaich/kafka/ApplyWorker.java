@@ -0,0 +1,217 @@
+package com.rbkmoney.shumaich.kafka;
+
+import com.rbkmoney.shumaich.domain.KafkaOffset;
+import com.rbkmoney.shumaich.exception.ReplayRequiredException;
+import com.rbkmoney.shumaich.kafka.handler.Handler;
+import com.rbkmoney.shumaich.service.KafkaOffsetService;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Apply stage of consumer: handles polled batches one by one and saves their offsets.
+ * Batches are queued by polling thread, so next batch is already in memory when previous one commits.
+ * Batches of final operations lane have their own queue and are taken before queued holds.
+ */
+@Slf4j
+public class ApplyWorker<K, V> implements Runnable {
+
+    private static final long QUEUE_POLL_TIMEOUT_MS = 100;
+
+    private final Handler<K, V> handler;
+    private final KafkaOffsetService kafkaOffsetService;
+    private final ApplyFlowControl applyFlowControl;
+    private final ApplyRetry applyRetry;
+    private final BlockingQueue<ConsumerRecords<K, V>> queue;
+    private final BlockingQueue<ConsumerRecords<K, V>> priorityQueue;
+    private final Semaphore queuedBatches = new Semaphore(0);
+    private volatile boolean alive = true;
+    private int batchLimit;
+
+    public ApplyWorker(
+            Handler<K, V> handler,
+            KafkaOffsetService kafkaOffsetService,
+            ApplyFlowControl applyFlowControl,
+            ApplyRetry applyRetry,
+            int queueCapacity) {
+        this.handler = handler;
+        this.kafkaOffsetService = kafkaOffsetService;
+        this.applyFlowControl = applyFlowControl;
+        this.applyRetry = applyRetry;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.priorityQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.batchLimit = applyFlowControl.initialBatchLimit();
+    }
+
+    public boolean isAlive() {
+        return alive;
+    }
+
+    public boolean isFull() {
+        return queue.remainingCapacity() == 0;
+    }
+
+    public boolean isPriorityFull() {
+        return priorityQueue.remainingCapacity() == 0;
+    }
+
+    public boolean offer(ConsumerRecords<K, V> records) {
+        return offer(queue, records);
+    }
+
+    public boolean offerPriority(ConsumerRecords<K, V> records) {
+        return offer(priorityQueue, records);
+    }
+
+    private boolean offer(BlockingQueue<ConsumerRecords<K, V>> targetQueue, ConsumerRecords<K, V> records) {
+        if (!targetQueue.offer(records)) {
+            return false;
+        }
+        queuedBatches.release();
+        return true;
+    }
+
+    public void stop() {
+        alive = false;
+    }
+
+    public void apply(ConsumerRecords<K, V> records) {
+        if (!applyFlowControl.isEnabled()) {
+            applyBatch(records);
+            return;
+        }
+        for (ConsumerRecords<K, V> batch : splitByLimit(records)) {
+            awaitWriteStall();
+            long startTime = System.currentTimeMillis();
+            applyBatch(batch);
+            batchLimit = applyFlowControl.nextBatchLimit(
+                    batchLimit, batch.count(), System.currentTimeMillis() - startTime
+            );
+        }
+    }
+
+    private void applyBatch(ConsumerRecords<K, V> records) {
+        try {
+            handleBatch(records);
+        } catch (ReplayRequiredException e) {
+            throw e;
+        } catch (Exception e) {
+            log.warn("Batch applying failed, partitions: {}, retrying record by record", records.partitions(), e);
+            applyRecordByRecord(records);
+        }
+    }
+
+    private void handleBatch(ConsumerRecords<K, V> records) {
+        handler.handle(records);
+        if (!handler.savesOffsets()) {
+            kafkaOffsetService.saveOffsets(kafkaOffsetService.getLatestOffsets(records));
+        }
+    }
+
+    /**
+     * Records before stored offset are already applied by failed batch, retry starts from the failed record.
+     * In modes without per record offsets the applied ones are passed again and skipped by plan check.
+     */
+    private void applyRecordByRecord(ConsumerRecords<K, V> records) {
+        for (TopicPartition topicPartition : records.partitions()) {
+            long appliedOffset = kafkaOffsetService.loadOffsets(List.of(topicPartition)).stream()
+                    .mapToLong(KafkaOffset::getOffset)
+                    .findFirst()
+                    .orElse(0L);
+            for (ConsumerRecord<K, V> record : records.records(topicPartition)) {
+                if (record.offset() >= appliedOffset) {
+                    applyRetry.apply(record, this::handleRecord);
+                }
+            }
+        }
+    }
+
+    private void handleRecord(ConsumerRecord<K, V> record) {
+        handleBatch(new ConsumerRecords<>(Map.of(
+                new TopicPartition(record.topic(), record.partition()),
+                List.of(record)
+        )));
+    }
+
+    /**
+     * Polled records can't be put back, so oversized poll is applied as several batches. Records of
+     * a partition keep their order, since batches are applied one after another.
+     */
+    private List<ConsumerRecords<K, V>> splitByLimit(ConsumerRecords<K, V> records) {
+        if (records.count() <= batchLimit) {
+            return List.of(records);
+        }
+        List<ConsumerRecords<K, V>> batches = new ArrayList<>();
+        Map<TopicPartition, List<ConsumerRecord<K, V>>> batch = new HashMap<>();
+        int batchSize = 0;
+        for (TopicPartition topicPartition : records.partitions()) {
+            List<ConsumerRecord<K, V>> partitionRecords = records.records(topicPartition);
+            int fromIndex = 0;
+            while (fromIndex < partitionRecords.size()) {
+                int toIndex = Math.min(partitionRecords.size(), fromIndex + batchLimit - batchSize);
+                batch.put(topicPartition, partitionRecords.subList(fromIndex, toIndex));
+                batchSize += toIndex - fromIndex;
+                fromIndex = toIndex;
+                if (batchSize == batchLimit) {
+                    batches.add(new ConsumerRecords<>(batch));
+                    batch = new HashMap<>();
+                    batchSize = 0;
+                }
+            }
+        }
+        if (batchSize > 0) {
+            batches.add(new ConsumerRecords<>(batch));
+        }
+        return batches;
+    }
+
+    private void awaitWriteStall() {
+        boolean stalled = false;
+        try {
+            while (alive && applyFlowControl.isWriteStalled()) {
+                if (!stalled) {
+                    log.warn("RocksDB write stall, applying is suspended");
+                    stalled = true;
+                }
+                Thread.sleep(applyFlowControl.getStallBackoffMs());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (stalled) {
+            log.info("RocksDB write stall is over, applying is resumed");
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (alive) {
+                // every permit has its batch in one of the queues, this thread is the only one taking them
+                if (queuedBatches.tryAcquire(QUEUE_POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                    ConsumerRecords<K, V> records = priorityQueue.poll();
+                    apply(records != null ? records : queue.poll());
+                }
+            }
+        } catch (InterruptedException e) {
+            log.info("Apply worker was interrupted");
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("Error during records applying", e);
+        } finally {
+            alive = false;
+            queue.clear();
+            priorityQueue.clear();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.rbkmoney.shumaich.kafka;
+
+import com.rbkmoney.shumaich.config.RestartProperties;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Restarts failed consumers. Consumer reports its failure itself, so restart doesn't wait for a periodic check.
+ * Restarts of the same consumer are delayed exponentially, the delay starts over once consumer has worked
+ * longer than the maximum backoff since recovery.
+ */
+@Slf4j
+@Component
+public class ConsumerSupervisor {
+
+    private final RestartProperties restartProperties;
+    private final MeterRegistry meterRegistry;
+    private final ScheduledExecutorService restartScheduler = Executors.newSingleThreadScheduledExecutor();
+
+    public ConsumerSupervisor(RestartProperties restartProperties, MeterRegistry meterRegistry) {
+        this.restartProperties = restartProperties;
+        this.meterRegistry = meterRegistry;
+    }
+
+    public void onFailure(SimpleTopicConsumer<?, ?> consumer) {
+        Restarts restarts = consumer.getRestarts();
+        long now = System.currentTimeMillis();
+        if (restarts.recoveredAtMs > 0 && now - restarts.recoveredAtMs > restartProperties.getMaxBackoffMs()) {
+            restarts.attempts = 0;
+        }
+        if (restarts.attempts == 0 || restarts.recoveredAtMs > 0) {
+            restarts.failedAtMs = now;
+        }
+        restarts.recoveredAtMs = 0;
+        restarts.attempts++;
+
+        long backoffMs = getBackoffMs(restarts.attempts);
+        log.warn("Consumer failed, partitions: {}, attempt: {}, restart in {} ms",
+                consumer.getAssignedPartitions(), restarts.attempts, backoffMs);
+        for (TopicPartition topicPartition : consumer.getAssignedPartitions()) {
+            meterRegistry.counter("shumaich.consumer.restarts", tags(topicPartition)).increment();
+        }
+        restartScheduler.schedule(consumer::restart, backoffMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called by restarted consumer after its first successful poll.
+     */
+    public void onRecovered(SimpleTopicConsumer<?, ?> consumer) {
+        Restarts restarts = consumer.getRestarts();
+        restarts.recoveredAtMs = System.currentTimeMillis();
+        long recoveryTimeMs = restarts.recoveredAtMs - restarts.failedAtMs;
+        log.info("Consumer recovered, partitions: {}, attempts: {}, recovery time: {} ms",
+                consumer.getAssignedPartitions(), restarts.attempts, recoveryTimeMs);
+        for (TopicPartition topicPartition : consumer.getAssignedPartitions()) {
+            meterRegistry.timer("shumaich.consumer.recovery", tags(topicPartition))
+                    .record(recoveryTimeMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    long getBackoffMs(int attempts) {
+        long backoffMs = restartProperties.getInitialBackoffMs();
+        for (int i = 1; i < attempts && backoffMs < restartProperties.getMaxBackoffMs(); i++) {
+            backoffMs *= 2;
+        }
+        return Math.min(backoffMs, restartProperties.getMaxBackoffMs());
+    }
+
+    @PreDestroy
+    public void shutdownRestartScheduler() {
+        restartScheduler.shutdownNow();
+    }
+
+    private Tags tags(TopicPartition topicPartition) {
+        return Tags.of("topic", topicPartition.topic(), "partition", String.valueOf(topicPartition.partition()));
+    }
+
+    /**
+     * Restart history of a consumer, changed only between its runs.
+     */
+    static class Restarts {
+
+        private int attempts;
+        private long failedAtMs;
+        private long recoveredAtMs;
+
+    }
+
+}
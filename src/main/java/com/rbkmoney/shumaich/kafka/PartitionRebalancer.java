@@ -0,0 +1,143 @@
+package com.rbkmoney.shumaich.kafka;
+
+import com.rbkmoney.shumaich.config.RebalanceProperties;
+import com.rbkmoney.shumaich.domain.KafkaOffset;
+import com.rbkmoney.shumaich.service.KafkaOffsetService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.ListOffsetsResult;
+import org.apache.kafka.clients.admin.OffsetSpec;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Calculates partition to consumer assignment from partition load: current lag plus records applied
+ * since previous check. Consumers amount follows total load within configured bounds.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class PartitionRebalancer {
+
+    private final AdminClient kafkaAdminClient;
+    private final KafkaOffsetService kafkaOffsetService;
+    private final RebalanceProperties rebalanceProperties;
+    private final Map<TopicPartition, Long> previousOffsets = new HashMap<>();
+
+    public boolean isEnabled() {
+        return rebalanceProperties.isEnabled();
+    }
+
+    /**
+     * @return new assignment, if consumers amount should change or current one is skewed
+     */
+    public synchronized Optional<List<List<TopicPartition>>> rebalance(List<List<TopicPartition>> assignment) {
+        List<TopicPartition> partitions = assignment.stream()
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+        Map<TopicPartition, Long> loads;
+        try {
+            loads = calculateLoads(partitions);
+        } catch (ExecutionException e) {
+            log.warn("Can't get end offsets, rebalancing is skipped", e);
+            return Optional.empty();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Optional.empty();
+        }
+
+        long totalLoad = loads.values().stream().mapToLong(Long::longValue).sum();
+        int consumersAmount = calculateConsumersAmount(totalLoad, partitions.size());
+        List<List<TopicPartition>> balanced = balance(partitions, loads, consumersAmount);
+        long currentMaxLoad = maxLoad(assignment, loads);
+        long balancedMaxLoad = maxLoad(balanced, loads);
+        boolean skewed = currentMaxLoad >= rebalanceProperties.getMinSkewLoad()
+                         && currentMaxLoad > rebalanceProperties.getImbalanceRatio() * balancedMaxLoad;
+
+        if (consumersAmount == assignment.size() && !skewed) {
+            return Optional.empty();
+        }
+        log.info("Rebalancing partitions, consumers: {} -> {}, max load: {} -> {}",
+                assignment.size(), consumersAmount, currentMaxLoad, balancedMaxLoad);
+        return Optional.of(balanced);
+    }
+
+    private Map<TopicPartition, Long> calculateLoads(List<TopicPartition> partitions)
+            throws ExecutionException, InterruptedException {
+        Map<TopicPartition, OffsetSpec> offsetSpecs = partitions.stream()
+                .collect(Collectors.toMap(Function.identity(), topicPartition -> OffsetSpec.latest()));
+        Map<TopicPartition, ListOffsetsResult.ListOffsetsResultInfo> endOffsets = kafkaAdminClient
+                .listOffsets(offsetSpecs)
+                .all()
+                .get();
+        Map<TopicPartition, Long> storedOffsets = kafkaOffsetService.loadOffsets(partitions).stream()
+                .collect(Collectors.toMap(KafkaOffset::getTopicPartition, KafkaOffset::getOffset));
+
+        Map<TopicPartition, Long> loads = new HashMap<>();
+        for (TopicPartition topicPartition : partitions) {
+            long storedOffset = storedOffsets.getOrDefault(topicPartition, 0L);
+            long lag = Math.max(endOffsets.get(topicPartition).offset() - storedOffset, 0L);
+            long applied = Math.max(storedOffset - previousOffsets.getOrDefault(topicPartition, storedOffset), 0L);
+            loads.put(topicPartition, lag + applied);
+            previousOffsets.put(topicPartition, storedOffset);
+        }
+        return loads;
+    }
+
+    private int calculateConsumersAmount(long totalLoad, int partitionsAmount) {
+        int wanted = (int) Math.ceil(totalLoad / (double) rebalanceProperties.getLoadPerConsumer());
+        int bounded = Math.max(rebalanceProperties.getMinConsumers(),
+                Math.min(rebalanceProperties.getMaxConsumers(), wanted));
+        return Math.max(1, Math.min(bounded, partitionsAmount));
+    }
+
+    /**
+     * Most loaded partitions go first, each one to the least loaded consumer.
+     */
+    private List<List<TopicPartition>> balance(
+            List<TopicPartition> partitions,
+            Map<TopicPartition, Long> loads,
+            int consumersAmount) {
+        List<List<TopicPartition>> balanced = new ArrayList<>(consumersAmount);
+        long[] consumerLoads = new long[consumersAmount];
+        for (int i = 0; i < consumersAmount; i++) {
+            balanced.add(new ArrayList<>());
+        }
+        List<TopicPartition> sortedPartitions = partitions.stream()
+                .sorted(Comparator.comparing((TopicPartition tp) -> loads.get(tp)).reversed()
+                        .thenComparing(TopicPartition::partition))
+                .collect(Collectors.toList());
+        for (TopicPartition topicPartition : sortedPartitions) {
+            int leastLoaded = 0;
+            for (int i = 1; i < consumersAmount; i++) {
+                if (consumerLoads[i] < consumerLoads[leastLoaded]
+                    || consumerLoads[i] == consumerLoads[leastLoaded]
+                       && balanced.get(i).size() < balanced.get(leastLoaded).size()) {
+                    leastLoaded = i;
+                }
+            }
+            balanced.get(leastLoaded).add(topicPartition);
+            consumerLoads[leastLoaded] += loads.get(topicPartition);
+        }
+        return balanced;
+    }
+
+    private long maxLoad(List<List<TopicPartition>> assignment, Map<TopicPartition, Long> loads) {
+        return assignment.stream()
+                .mapToLong(partitions -> partitions.stream().mapToLong(loads::get).sum())
+                .max()
+                .orElse(0L);
+    }
+
+}
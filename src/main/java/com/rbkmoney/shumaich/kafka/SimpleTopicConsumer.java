@@ -5,37 +5,76 @@ import com.rbkmoney.shumaich.kafka.handler.Handler;
 import com.rbkmoney.shumaich.service.KafkaOffsetService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.errors.RetriableException;
 import org.apache.kafka.common.errors.WakeupException;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 @Slf4j
 @RequiredArgsConstructor
 public class SimpleTopicConsumer<K, V> implements Runnable {
 
+    private static final long PAUSED_POLLING_TIMEOUT_MS = 100;
+    private static final long APPLY_TERMINATION_TIMEOUT_MS = 60_000;
+
     private final Map<String, Object> consumerProps;
     private final List<TopicPartition> assignedPartitions;
     private final KafkaOffsetService kafkaOffsetService;
     private final Handler<K, V> handler;
+    private final ApplyFlowControl applyFlowControl;
+    private final ApplyRetry applyRetry;
     private final Long pollingTimeout;
+    private final Integer prefetchBatches;
+    private final boolean partitionWorkers;
+    private final String priorityTopicName;
+    private final String subscribedTopicName;
+    private final ConsumerSupervisor supervisor;
+    private final ConsumerSupervisor.Restarts restarts = new ConsumerSupervisor.Restarts();
+    private final AtomicReference<State> state = new AtomicReference<>(State.RUNNING);
+    private final CountDownLatch stopped = new CountDownLatch(1);
     private volatile boolean alive = true;
-    private KafkaConsumer<K, V> consumer;
+    private volatile KafkaConsumer<K, V> consumer;
+    private volatile ExecutorService executor;
+    private volatile List<TopicPartition> ownedPartitions = List.of();
+    private boolean recovering;
 
-    public static <K, V> SimpleTopicConsumer<K, V> of(SimpleTopicConsumer<K, V> otherConsumer) {
+    public static <K, V> SimpleTopicConsumer<K, V> of(
+            SimpleTopicConsumer<K, V> otherConsumer,
+            List<TopicPartition> assignedPartitions) {
         return new SimpleTopicConsumer<>(
                 otherConsumer.consumerProps,
-                otherConsumer.assignedPartitions,
+                assignedPartitions,
                 otherConsumer.kafkaOffsetService,
                 otherConsumer.handler,
-                otherConsumer.pollingTimeout
+                otherConsumer.applyFlowControl,
+                otherConsumer.applyRetry,
+                otherConsumer.pollingTimeout,
+                otherConsumer.prefetchBatches,
+                otherConsumer.partitionWorkers,
+                otherConsumer.priorityTopicName,
+                otherConsumer.subscribedTopicName,
+                otherConsumer.supervisor
         );
     }
 
@@ -43,58 +82,401 @@ public class SimpleTopicConsumer<K, V> implements Runnable {
         return alive && !Thread.currentThread().isInterrupted();
     }
 
+    /**
+     * @return partitions of manual assignment or partitions currently owned in consumer group
+     */
+    public List<TopicPartition> getAssignedPartitions() {
+        return subscribedTopicName != null ? ownedPartitions : assignedPartitions;
+    }
+
+    ConsumerSupervisor.Restarts getRestarts() {
+        return restarts;
+    }
+
+    public void start(ExecutorService executor) {
+        this.executor = executor;
+        executor.submit(this);
+    }
+
+    /**
+     * Runs failed consumer again on the same executor, unless it was stopped while waiting for restart.
+     */
+    void restart() {
+        if (!state.compareAndSet(State.FAILED, State.RUNNING)) {
+            return;
+        }
+        recovering = true;
+        try {
+            executor.submit(this);
+        } catch (RejectedExecutionException e) {
+            log.info("Consumers are shutting down, restart is cancelled, partitions: {}", assignedPartitions);
+            finish();
+        }
+    }
+
+    /**
+     * Stops polling, batch in progress is finished and its offsets are saved before consumer closes.
+     */
+    public void stop() {
+        alive = false;
+        if (state.compareAndSet(State.FAILED, State.STOPPED)) {
+            finish();
+            return;
+        }
+        KafkaConsumer<K, V> currentConsumer = consumer;
+        if (currentConsumer != null) {
+            currentConsumer.wakeup();
+        }
+    }
+
+    public boolean awaitStopped(long timeoutMs) throws InterruptedException {
+        return stopped.await(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Failure is reported to supervisor right away. Kafka client is kept for restart unless the client itself
+     * failed, so metadata, connections and fetch sessions survive failures of applying. Errors are reported too,
+     * otherwise consumer would stop for good with nobody to restart it.
+     */
     @Override
     public void run() {
+        Throwable failure = null;
         try {
-            initConsumer();
+            if (consumer == null) {
+                initConsumer();
+            } else {
+                rewindConsumer();
+            }
 
-            while (isAlive()) {
-                ConsumerRecords<K, V> records = consumer.poll(Duration.ofMillis(pollingTimeout));
-                if (records.count() > 0) {
-                    handler.handle(records);
-                    saveOffsetsAndSeek(records);
-                }
+            if (prefetchBatches > 0 || partitionWorkers) {
+                pollPipelined();
+            } else {
+                pollSequentially();
             }
 
         } catch (WakeupException e) {
             log.info("Wakeup call occurred", e);
         } catch (InterruptException e) { //kafka exception, not java.lang.
             log.info("Thread was interrupted");
-        } catch (Exception e) {
+        } catch (Throwable e) {
             log.error("Error during Kafka polling", e);
+            failure = e;
+        } finally {
+            if (failure != null && isAlive() && state.compareAndSet(State.RUNNING, State.FAILED)) {
+                if (!isClientReusable(failure)) {
+                    closeClient();
+                }
+                supervisor.onFailure(this);
+            } else {
+                finish();
+            }
+        }
+    }
+
+    private void finish() {
+        state.set(State.STOPPED);
+        alive = false;
+        try {
+            closeClient();
         } finally {
-            consumer.close();
-            alive = false;
+            stopped.countDown();
         }
     }
 
+    private void closeClient() {
+        KafkaConsumer<K, V> currentConsumer = consumer;
+        if (currentConsumer != null) {
+            consumer = null;
+            currentConsumer.close();
+        }
+    }
+
+    /**
+     * Client errors besides retriable ones may leave client unusable, for example unauthorized or closed.
+     * Error may interrupt the client in the middle of its work, so client is never kept after it.
+     */
+    private boolean isClientReusable(Throwable e) {
+        return e instanceof Exception
+               && (!(e instanceof org.apache.kafka.common.KafkaException) || e instanceof RetriableException);
+    }
+
     private void initConsumer() {
         log.debug("Initializing consumer for topic and partitions: {}", assignedPartitions);
 
         consumer = new KafkaConsumer<>(consumerProps);
-        consumer.assign(assignedPartitions);
-        List<KafkaOffset> kafkaOffsets = kafkaOffsetService.loadOffsets(assignedPartitions);
-        kafkaOffsets.forEach(kafkaOffset -> consumer.seek(kafkaOffset.getTopicPartition(), kafkaOffset.getOffset()));
+        if (subscribedTopicName != null) {
+            consumer.subscribe(List.of(subscribedTopicName), new StoredOffsetsRebalanceListener());
+        } else {
+            List<TopicPartition> consumedPartitions = getConsumedPartitions();
+            consumer.assign(consumedPartitions);
+            seekToStoredOffsets(consumedPartitions);
+        }
 
         log.debug("Initialized consumer for topic and partitions: {}", assignedPartitions);
     }
 
-    private void saveOffsetsAndSeek(ConsumerRecords<K, V> records) {
+    /**
+     * Position of kept client is after the records of failed batch, so it goes back to stored offsets.
+     */
+    private void rewindConsumer() {
+        log.debug("Rewinding consumer for topic and partitions: {}", assignedPartitions);
+
+        consumer.resume(consumer.paused());
+        seekToStoredOffsets(consumer.assignment());
+    }
+
+    /**
+     * Partitions without stored offset are read from the beginning, offsets are never committed to Kafka.
+     * Partition taken over through consumer group has to be rebuilt from its first record, so it is refused
+     * once retention has deleted the beginning of its log.
+     */
+    private void seekToStoredOffsets(Collection<TopicPartition> topicPartitions) {
+        List<KafkaOffset> kafkaOffsets = kafkaOffsetService.loadOffsets(topicPartitions);
+        kafkaOffsets.forEach(kafkaOffset -> consumer.seek(kafkaOffset.getTopicPartition(), kafkaOffset.getOffset()));
+        Set<TopicPartition> storedPartitions = kafkaOffsets.stream()
+                .map(KafkaOffset::getTopicPartition)
+                .collect(Collectors.toSet());
+        List<TopicPartition> notStoredPartitions = topicPartitions.stream()
+                .filter(topicPartition -> !storedPartitions.contains(topicPartition))
+                .collect(Collectors.toList());
+        if (!notStoredPartitions.isEmpty()) {
+            if (subscribedTopicName != null) {
+                checkNotTruncated(notStoredPartitions);
+            }
+            consumer.seekToBeginning(notStoredPartitions);
+        }
+    }
 
-        List<KafkaOffset> offsets = records.partitions().stream()
-                .map(topicPartition -> getLatestKafkaOffset(records, topicPartition))
+    private void checkNotTruncated(List<TopicPartition> topicPartitions) {
+        List<TopicPartition> truncatedPartitions = consumer.beginningOffsets(topicPartitions).entrySet().stream()
+                .filter(beginningOffset -> beginningOffset.getValue() > 0)
+                .map(Map.Entry::getKey)
                 .collect(Collectors.toList());
+        if (!truncatedPartitions.isEmpty()) {
+            throw new IllegalStateException(String.format(
+                    "Partitions %s have no stored offsets and their logs are truncated, state can't be rebuilt",
+                    truncatedPartitions));
+        }
+    }
+
+    private void polled() {
+        if (recovering) {
+            recovering = false;
+            supervisor.onRecovered(this);
+        }
+    }
+
+    private void pollSequentially() {
+        ApplyWorker<K, V> applyWorker = createApplyWorker(1);
+        while (isAlive()) {
+            ConsumerRecords<K, V> records = consumer.poll(Duration.ofMillis(pollingTimeout));
+            polled();
+            if (records.count() > 0) {
+                for (ConsumerRecords<K, V> lane : getLanes(records)) {
+                    applyWorker.apply(lane);
+                }
+            }
+        }
+    }
 
-        kafkaOffsetService.saveOffsets(offsets);
+    /**
+     * Final operations lane is consumed by the owner of the same partition number of operation log topic.
+     * Writers use account id as key for both topics, so account is still changed by a single consumer.
+     */
+    private List<TopicPartition> getConsumedPartitions() {
+        if (priorityTopicName == null) {
+            return assignedPartitions;
+        }
+        List<TopicPartition> consumedPartitions = new ArrayList<>(assignedPartitions);
+        for (TopicPartition topicPartition : assignedPartitions) {
+            consumedPartitions.add(getPriorityPartition(topicPartition));
+        }
+        return consumedPartitions;
+    }
 
-        offsets.forEach(offset -> consumer.seek(offset.getTopicPartition(), offset.getOffset()));
+    private TopicPartition getPriorityPartition(TopicPartition topicPartition) {
+        return new TopicPartition(priorityTopicName, topicPartition.partition());
     }
 
-    private KafkaOffset getLatestKafkaOffset(ConsumerRecords<K, V> records, TopicPartition topicPartition) {
-        List<ConsumerRecord<K, V>> recordsForPartition = records.records(topicPartition);
+    private boolean isPriority(TopicPartition topicPartition) {
+        return topicPartition.topic().equals(priorityTopicName);
+    }
+
+    /**
+     * @return not empty lanes of polled records, final operations go first
+     */
+    List<ConsumerRecords<K, V>> getLanes(ConsumerRecords<K, V> records) {
+        if (priorityTopicName == null) {
+            return List.of(records);
+        }
+        List<ConsumerRecords<K, V>> lanes = new ArrayList<>(2);
+        for (ConsumerRecords<K, V> lane : List.of(getLane(records, true), getLane(records, false))) {
+            if (lane.count() > 0) {
+                lanes.add(lane);
+            }
+        }
+        return lanes;
+    }
+
+    private ConsumerRecords<K, V> getLane(ConsumerRecords<K, V> records, boolean priority) {
+        Map<TopicPartition, List<ConsumerRecord<K, V>>> laneRecords = new HashMap<>();
+        for (TopicPartition topicPartition : records.partitions()) {
+            if (isPriority(topicPartition) == priority) {
+                laneRecords.put(topicPartition, records.records(topicPartition));
+            }
+        }
+        return new ConsumerRecords<>(laneRecords);
+    }
+
+    /**
+     * Polling thread only fetches, batches are applied by separate workers - one for all assigned partitions
+     * or one per partition, so slow partition doesn't hold back others. Consumer position already points
+     * after the fetched records, so there is no seek after commit and prefetched data is not thrown away.
+     */
+    private void pollPipelined() {
+        int queueCapacity = Math.max(prefetchBatches, 1);
+        Map<TopicPartition, ApplyWorker<K, V>> partitionApplyWorkers = partitionWorkers
+                ? createPartitionApplyWorkers(queueCapacity)
+                : Map.of();
+        ApplyWorker<K, V> sharedApplyWorker = partitionWorkers ? null : createApplyWorker(queueCapacity);
+        // shared worker also takes partitions assigned by consumer group later
+        Function<TopicPartition, ApplyWorker<K, V>> applyWorkers = partitionWorkers
+                ? partitionApplyWorkers::get
+                : topicPartition -> sharedApplyWorker;
+        Set<ApplyWorker<K, V>> distinctWorkers = partitionWorkers
+                ? new HashSet<>(partitionApplyWorkers.values())
+                : Set.of(sharedApplyWorker);
+        ExecutorService applyExecutor = Executors.newFixedThreadPool(distinctWorkers.size());
+        distinctWorkers.forEach(applyExecutor::submit);
+        try {
+            while (isAlive() && distinctWorkers.stream().allMatch(ApplyWorker::isAlive)) {
+                ConsumerRecords<K, V> records = consumer.poll(Duration.ofMillis(applyBackpressure(applyWorkers)));
+                polled();
+                if (records.count() > 0) {
+                    dispatch(records, applyWorkers);
+                }
+            }
+            if (isAlive()) {
+                throw new IllegalStateException("Apply worker failed, partitions: " + getAssignedPartitions());
+            }
+        } finally {
+            stopApplyWorkers(distinctWorkers, applyExecutor);
+        }
+    }
+
+    private Map<TopicPartition, ApplyWorker<K, V>> createPartitionApplyWorkers(int queueCapacity) {
+        Map<TopicPartition, ApplyWorker<K, V>> applyWorkers = assignedPartitions.stream().collect(Collectors.toMap(
+                Function.identity(),
+                topicPartition -> createApplyWorker(queueCapacity)
+        ));
+        if (priorityTopicName != null) {
+            for (TopicPartition topicPartition : assignedPartitions) {
+                applyWorkers.put(getPriorityPartition(topicPartition), applyWorkers.get(topicPartition));
+            }
+        }
+        return applyWorkers;
+    }
+
+    private ApplyWorker<K, V> createApplyWorker(int queueCapacity) {
+        return new ApplyWorker<>(handler, kafkaOffsetService, applyFlowControl, applyRetry, queueCapacity);
+    }
+
+    private void dispatch(
+            ConsumerRecords<K, V> records,
+            Function<TopicPartition, ApplyWorker<K, V>> applyWorkers) {
+        if (!partitionWorkers) {
+            for (ConsumerRecords<K, V> lane : getLanes(records)) {
+                offer(applyWorkers.apply(lane.partitions().iterator().next()), lane);
+            }
+            return;
+        }
+        for (TopicPartition topicPartition : records.partitions()) {
+            offer(applyWorkers.apply(topicPartition),
+                    new ConsumerRecords<>(Map.of(topicPartition, records.records(topicPartition)))
+            );
+        }
+    }
+
+    private void offer(ApplyWorker<K, V> applyWorker, ConsumerRecords<K, V> records) {
+        boolean priority = isPriority(records.partitions().iterator().next());
+        // only polling thread fills queues and it doesn't poll partitions with full queue
+        if (!(priority ? applyWorker.offerPriority(records) : applyWorker.offer(records))) {
+            throw new IllegalStateException("Apply queue overflow, partitions: " + records.partitions());
+        }
+    }
+
+    private long applyBackpressure(Function<TopicPartition, ApplyWorker<K, V>> applyWorkers) {
+        List<TopicPartition> freedPartitions = consumer.paused().stream()
+                .filter(topicPartition -> !isQueueFull(applyWorkers, topicPartition))
+                .collect(Collectors.toList());
+        if (!freedPartitions.isEmpty()) {
+            consumer.resume(freedPartitions);
+        }
+        List<TopicPartition> fullPartitions = consumer.assignment().stream()
+                .filter(topicPartition -> isQueueFull(applyWorkers, topicPartition))
+                .collect(Collectors.toList());
+        if (!fullPartitions.isEmpty()) {
+            consumer.pause(fullPartitions);
+        }
+        return consumer.paused().isEmpty() ? pollingTimeout : PAUSED_POLLING_TIMEOUT_MS;
+    }
+
+    private boolean isQueueFull(
+            Function<TopicPartition, ApplyWorker<K, V>> applyWorkers,
+            TopicPartition topicPartition) {
+        ApplyWorker<K, V> applyWorker = applyWorkers.apply(topicPartition);
+        return isPriority(topicPartition) ? applyWorker.isPriorityFull() : applyWorker.isFull();
+    }
+
+    /**
+     * Waits for batches in progress, otherwise restarted consumer could apply the same records concurrently.
+     */
+    private void stopApplyWorkers(Set<ApplyWorker<K, V>> applyWorkers, ExecutorService applyExecutor) {
+        applyWorkers.forEach(ApplyWorker::stop);
+        applyExecutor.shutdown();
+        // shutdown of consumers interrupts polling thread, but in-flight batch must be finished anyway
+        boolean interrupted = Thread.interrupted();
+        try {
+            if (!applyExecutor.awaitTermination(APPLY_TERMINATION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                log.warn("Apply workers awaitTermination timeout, partitions: {}", assignedPartitions);
+            }
+        } catch (InterruptedException e) {
+            log.warn("Interrupted while waiting for apply workers, partitions: {}", assignedPartitions);
+            interrupted = true;
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Group only decides which partitions are owned, positions are taken from offsets stored with applied state.
+     * Batches of revoked partitions which are already queued are still applied, every instance has its own
+     * storage, so new owner doesn't share state with them. Reads of accounts of revoked partitions are refused
+     * by this instance from then on, since its state of them is no longer updated.
+     */
+    private class StoredOffsetsRebalanceListener implements ConsumerRebalanceListener {
+
+        @Override
+        public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+            log.info("Partitions assigned: {}", partitions);
+            seekToStoredOffsets(partitions);
+            ownedPartitions = List.copyOf(consumer.assignment());
+        }
+
+        @Override
+        public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+            log.info("Partitions revoked: {}", partitions);
+            ownedPartitions = consumer.assignment().stream()
+                    .filter(topicPartition -> !partitions.contains(topicPartition))
+                    .collect(Collectors.toList());
+        }
+
+    }
 
-        long lastOffset = recordsForPartition.get(recordsForPartition.size() - 1).offset();
-        return new KafkaOffset(topicPartition, lastOffset + 1); // +1 to not repeat read of last message
+    private enum State {
+        RUNNING, FAILED, STOPPED
     }
 
 }
@@ -1,9 +1,13 @@
 package com.rbkmoney.shumaich.kafka;
 
+import com.rbkmoney.shumaich.domain.KafkaOffset;
 import com.rbkmoney.shumaich.kafka.handler.Handler;
 import com.rbkmoney.shumaich.service.KafkaOffsetService;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.OffsetSpec;
 import org.apache.kafka.clients.admin.TopicDescription;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.TopicPartitionInfo;
 import org.springframework.scheduling.annotation.Scheduled;
@@ -12,72 +16,321 @@ import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 @Slf4j
 public class TopicConsumptionManager<K, V> {
 
+    private static final long CONSUMER_STOP_WAIT_MS = 5_000;
+    // default metadata.max.age.ms, writers send records by the old partitions amount at most this long
+    private static final long PRODUCER_METADATA_MAX_AGE_MS = 300_000;
+
     private final ExecutorService executorService;
     private final List<SimpleTopicConsumer<K, V>> consumers = new ArrayList<>();
+    // consumers stopped by reassignment, their partitions get new consumers only after all of them have stopped
+    private final List<SimpleTopicConsumer<K, V>> stoppingConsumers = new ArrayList<>();
+    private final SimpleTopicConsumer<K, V> template;
+    private final KafkaOffsetService kafkaOffsetService;
+    private final PartitionRebalancer partitionRebalancer;
+    private final AdminClient kafkaAdminClient;
+    private final String topicName;
+    private final Integer partitionsPerThread;
+    private final boolean partitionWorkers;
+    private final boolean groupMembership;
+    private final boolean partitionRefresh;
 
     private final AtomicBoolean destroying = new AtomicBoolean(false);
     private volatile boolean initialized = false;
+    private List<List<TopicPartition>> pendingAssignment;
+    // 0 and null until new partitions are detected
+    private long resizeDetectedMs;
+    private Map<TopicPartition, Long> resizeEndOffsets;
+
+    public TopicConsumptionManager(
+            TopicDescription topicDescription,
+            Integer partitionsPerThread,
+            Map<String, Object> consumerProps,
+            KafkaOffsetService kafkaOffsetService,
+            Handler<K, V> handler,
+            ApplyFlowControl applyFlowControl,
+            ApplyRetry applyRetry,
+            Long pollingTimeout,
+            Integer prefetchBatches,
+            boolean partitionWorkers,
+            PartitionRebalancer partitionRebalancer,
+            AdminClient kafkaAdminClient,
+            ConsumerSupervisor consumerSupervisor) {
+        this(topicDescription, partitionsPerThread, consumerProps, kafkaOffsetService, handler, applyFlowControl,
+                applyRetry, pollingTimeout, prefetchBatches, partitionWorkers, partitionRebalancer, kafkaAdminClient,
+                consumerSupervisor, null, true);
+    }
 
+    /**
+     * @param priorityTopicName topic of final operations lane, its partitions are consumed and applied
+     *                          before records of the same partition numbers of the main topic, may be null
+     * @param partitionRefresh  false if state of an account may be written only by the consumer of its partition,
+     *                          then partitions added to topic are consumed only after restart
+     *
+     * <p>With group id in consumer props partitions are owned through Kafka group membership instead
+     * of manual assignment, consumers only subscribe to the topic. Static member id is suffixed with
+     * consumer index, so every consumer keeps its own membership across restarts.
+     */
     public TopicConsumptionManager(
             TopicDescription topicDescription,
             Integer partitionsPerThread,
             Map<String, Object> consumerProps,
             KafkaOffsetService kafkaOffsetService,
             Handler<K, V> handler,
-            Long pollingTimeout) {
+            ApplyFlowControl applyFlowControl,
+            ApplyRetry applyRetry,
+            Long pollingTimeout,
+            Integer prefetchBatches,
+            boolean partitionWorkers,
+            PartitionRebalancer partitionRebalancer,
+            AdminClient kafkaAdminClient,
+            ConsumerSupervisor consumerSupervisor,
+            String priorityTopicName,
+            boolean partitionRefresh) {
+        this.kafkaOffsetService = kafkaOffsetService;
+        this.partitionRebalancer = partitionRebalancer;
+        this.kafkaAdminClient = kafkaAdminClient;
+        this.topicName = topicDescription.name();
+        this.partitionsPerThread = partitionsPerThread;
+        this.partitionWorkers = partitionWorkers;
+        this.groupMembership = consumerProps.containsKey(ConsumerConfig.GROUP_ID_CONFIG);
+        this.partitionRefresh = partitionRefresh;
         List<TopicPartitionInfo> topicPartitions = topicDescription.partitions();
-        int consumersAmount = (int) Math.ceil(topicPartitions.size() / (double) partitionsPerThread);
-        this.executorService = Executors.newFixedThreadPool(consumersAmount);
+        // with worker per partition single consumer polls everything, apply parallelism comes from workers
+        int partitionsPerConsumer = partitionWorkers ? topicPartitions.size() : partitionsPerThread;
+        int consumersAmount = (int) Math.ceil(topicPartitions.size() / (double) partitionsPerConsumer);
+        // consumers amount changes with rebalancing
+        this.executorService = Executors.newCachedThreadPool();
 
         for (int i = 0; i < consumersAmount; i++) {
             consumers.add(
                     new SimpleTopicConsumer<>(
-                            consumerProps,
-                            calculateAssignedPartitions(partitionsPerThread, topicDescription, i),
+                            groupMembership ? memberConsumerProps(consumerProps, i) : consumerProps,
+                            groupMembership
+                                    ? List.of()
+                                    : calculateAssignedPartitions(partitionsPerConsumer, topicDescription, i),
                             kafkaOffsetService,
                             handler,
-                            pollingTimeout
+                            applyFlowControl,
+                            applyRetry,
+                            pollingTimeout,
+                            prefetchBatches,
+                            partitionWorkers,
+                            priorityTopicName,
+                            groupMembership ? topicName : null,
+                            consumerSupervisor
                     )
             );
         }
+        this.template = consumers.isEmpty() ? null : consumers.get(0);
     }
 
     @PostConstruct
     public void submitConsumers() {
         log.info("Consumers starting...");
-        consumers.forEach(executorService::submit);
+        consumers.forEach(consumer -> consumer.start(executorService));
         initialized = true;
     }
 
-    @Scheduled(fixedRateString = "${kafka.topics.consumer-monitor-rate}")
-    public void monitorConsumers() {
-        if (!initialized || destroying.get()) {
+    /**
+     * Consumers are moved only between batches: stopped consumer finishes batch in progress and saves its offsets,
+     * new one starts from them. Consumers which keep their partitions are not touched. Until every stopped consumer
+     * has finished no other reassignment is made, so partition never has two consumers.
+     */
+    @Scheduled(fixedRateString = "${kafka.topics.rebalance.check-rate}")
+    public synchronized void rebalanceConsumers() throws InterruptedException {
+        // with worker per partition there is a single consumer, parallelism comes from workers,
+        // consumer group is balanced by Kafka
+        if (!initialized || destroying.get() || partitionWorkers || groupMembership
+            || !partitionRebalancer.isEnabled() || !completeReassignment()) {
+            return;
+        }
+        List<List<TopicPartition>> assignment = consumers.stream()
+                .map(SimpleTopicConsumer::getAssignedPartitions)
+                .collect(Collectors.toList());
+        Optional<List<List<TopicPartition>>> newAssignment = partitionRebalancer.rebalance(assignment);
+        if (newAssignment.isPresent()) {
+            reassignPartitions(newAssignment.get());
+        }
+    }
+
+    /**
+     * Partitions added to topic get consumers while service is running. Without stored offsets
+     * they are read from the earliest one, so nothing written before detection is lost.
+     *
+     * <p>Records are partitioned by account, so added partitions move accounts between partitions. Consumers of new
+     * partitions start only after old partitions are applied up to offsets taken once writers have switched
+     * to the new partitions amount, so operations of account moved to a new partition are not applied ahead
+     * of its older ones.
+     */
+    @Scheduled(fixedRateString = "${kafka.topics.partition-refresh-rate}")
+    public synchronized void refreshPartitions() throws InterruptedException {
+        // consumer group picks up new partitions itself
+        if (!initialized || destroying.get() || groupMembership || !completeReassignment()) {
+            return;
+        }
+        List<TopicPartition> topicPartitions;
+        try {
+            topicPartitions = kafkaAdminClient.describeTopics(List.of(topicName))
+                    .values()
+                    .get(topicName)
+                    .get()
+                    .partitions()
+                    .stream()
+                    .map(partitionInfo -> new TopicPartition(topicName, partitionInfo.partition()))
+                    .collect(Collectors.toList());
+        } catch (ExecutionException e) {
+            log.warn("Can't describe topic {}, partitions refresh is skipped", topicName, e);
+            return;
+        }
+        List<List<TopicPartition>> assignment = consumers.stream()
+                .map(SimpleTopicConsumer::getAssignedPartitions)
+                .collect(Collectors.toList());
+        Set<TopicPartition> assignedPartitions = assignment.stream()
+                .flatMap(List::stream)
+                .collect(Collectors.toSet());
+        List<TopicPartition> newPartitions = topicPartitions.stream()
+                .filter(Predicate.not(assignedPartitions::contains))
+                .collect(Collectors.toList());
+        if (newPartitions.isEmpty()) {
+            return;
+        }
+        if (!partitionRefresh) {
+            log.warn("New partitions detected: {}, they are consumed after restart in current configuration",
+                    newPartitions);
+            return;
+        }
+        if (!isDrainedPastResize(assignedPartitions)) {
             return;
         }
 
-        List<SimpleTopicConsumer<K, V>> deadConsumers = consumers.stream()
-                .filter(Predicate.not(SimpleTopicConsumer::isAlive))
+        log.info("New partitions are assigned: {}", newPartitions);
+        List<List<TopicPartition>> newAssignment = new ArrayList<>();
+        if (partitionWorkers) {
+            newAssignment.add(topicPartitions);
+        } else {
+            newAssignment.addAll(assignment);
+            for (int i = 0; i < newPartitions.size(); i += partitionsPerThread) {
+                newAssignment.add(newPartitions.subList(i, Math.min(i + partitionsPerThread, newPartitions.size())));
+            }
+        }
+        reassignPartitions(newAssignment);
+    }
+
+    private boolean isDrainedPastResize(Set<TopicPartition> oldPartitions) throws InterruptedException {
+        long nowMs = System.currentTimeMillis();
+        if (resizeDetectedMs == 0) {
+            resizeDetectedMs = nowMs;
+            log.info("New partitions of topic {} detected, old partitions are drained first", topicName);
+        }
+        if (resizeEndOffsets == null) {
+            if (nowMs - resizeDetectedMs < PRODUCER_METADATA_MAX_AGE_MS) {
+                return false;
+            }
+            Map<TopicPartition, OffsetSpec> offsetSpecs = oldPartitions.stream()
+                    .collect(Collectors.toMap(Function.identity(), topicPartition -> OffsetSpec.latest()));
+            try {
+                resizeEndOffsets = kafkaAdminClient.listOffsets(offsetSpecs).all().get().entrySet().stream()
+                        .collect(Collectors.toMap(Map.Entry::getKey, endOffset -> endOffset.getValue().offset()));
+            } catch (ExecutionException e) {
+                log.warn("Can't get end offsets of topic {}, partitions refresh is skipped", topicName, e);
+                return false;
+            }
+        }
+        Map<TopicPartition, Long> storedOffsets = kafkaOffsetService.loadOffsets(resizeEndOffsets.keySet()).stream()
+                .collect(Collectors.toMap(KafkaOffset::getTopicPartition, KafkaOffset::getOffset));
+        for (Map.Entry<TopicPartition, Long> endOffset : resizeEndOffsets.entrySet()) {
+            if (storedOffsets.getOrDefault(endOffset.getKey(), 0L) < endOffset.getValue()) {
+                log.info("Partition {} is not drained up to offset {} yet, new partitions wait",
+                        endOffset.getKey(), endOffset.getValue());
+                return false;
+            }
+        }
+        resizeDetectedMs = 0;
+        resizeEndOffsets = null;
+        return true;
+    }
+
+    private void reassignPartitions(List<List<TopicPartition>> assignment) throws InterruptedException {
+        Set<Set<TopicPartition>> newPartitionSets = assignment.stream()
+                .map(HashSet::new)
+                .collect(Collectors.toSet());
+        List<SimpleTopicConsumer<K, V>> movedConsumers = consumers.stream()
+                .filter(consumer -> !newPartitionSets.contains(new HashSet<>(consumer.getAssignedPartitions())))
                 .collect(Collectors.toList());
+        movedConsumers.forEach(SimpleTopicConsumer::stop);
+        consumers.removeAll(movedConsumers);
+        stoppingConsumers.addAll(movedConsumers);
+        pendingAssignment = assignment;
+        completeReassignment();
+    }
+
+    /**
+     * Starts consumers of pending assignment once every stopped consumer has finished its batch. Waits for them
+     * only briefly, consumer stuck in applying is checked again by the next scheduled run.
+     *
+     * @return true if there is no reassignment in progress anymore
+     */
+    private boolean completeReassignment() throws InterruptedException {
+        if (pendingAssignment == null) {
+            return true;
+        }
+        long deadlineMs = System.currentTimeMillis() + CONSUMER_STOP_WAIT_MS;
+        for (SimpleTopicConsumer<K, V> consumer : stoppingConsumers) {
+            if (!consumer.awaitStopped(Math.max(0, deadlineMs - System.currentTimeMillis()))) {
+                log.warn("Consumer is still stopping, reassignment is postponed, partitions: {}",
+                        consumer.getAssignedPartitions());
+                return false;
+            }
+        }
+        stoppingConsumers.clear();
 
-        log.info("Consumers state, total:{}, alive:{}, dead:{}", consumers.size(),
-                consumers.size() - deadConsumers.size(),
-                deadConsumers.size()
-        );
+        Set<Set<TopicPartition>> keptPartitionSets = consumers.stream()
+                .map(consumer -> (Set<TopicPartition>) new HashSet<>(consumer.getAssignedPartitions()))
+                .collect(Collectors.toSet());
+        for (List<TopicPartition> partitions : pendingAssignment) {
+            if (!keptPartitionSets.contains(new HashSet<>(partitions))) {
+                SimpleTopicConsumer<K, V> consumer = SimpleTopicConsumer.of(template, partitions);
+                consumers.add(consumer);
+                consumer.start(executorService);
+            }
+        }
+        pendingAssignment = null;
+        log.info("Partitions reassigned, consumers: {}", consumers.size());
+        return true;
+    }
 
-        consumers.removeAll(deadConsumers);
-        consumers.addAll(restartDeadConsumers(deadConsumers));
+    /**
+     * Consumers are created once and never reassigned with consumer group, so they are read without lock.
+     *
+     * @return partition numbers of the topic currently owned by this instance through consumer group
+     */
+    public Set<Integer> getGroupOwnedPartitions() {
+        if (!groupMembership) {
+            throw new IllegalStateException("Partitions are owned through consumer group only when it is enabled");
+        }
+        return consumers.stream()
+                .flatMap(consumer -> consumer.getAssignedPartitions().stream())
+                .filter(topicPartition -> topicName.equals(topicPartition.topic()))
+                .map(TopicPartition::partition)
+                .collect(Collectors.toSet());
     }
 
     @PreDestroy
@@ -92,11 +345,14 @@ public class TopicConsumptionManager<K, V> {
         }
     }
 
-    private List<SimpleTopicConsumer<K, V>> restartDeadConsumers(List<SimpleTopicConsumer<K, V>> deadConsumers) {
-        return deadConsumers.stream()
-                .map(SimpleTopicConsumer::of)
-                .peek(executorService::submit)
-                .collect(Collectors.toList());
+    private Map<String, Object> memberConsumerProps(Map<String, Object> consumerProps, int i) {
+        Object groupInstanceId = consumerProps.get(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG);
+        if (groupInstanceId == null) {
+            return consumerProps;
+        }
+        Map<String, Object> memberProps = new HashMap<>(consumerProps);
+        memberProps.put(ConsumerConfig.GROUP_INSTANCE_ID_CONFIG, groupInstanceId + "-" + i);
+        return memberProps;
     }
 
     private List<TopicPartition> calculateAssignedPartitions(
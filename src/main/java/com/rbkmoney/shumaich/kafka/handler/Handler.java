@@ -5,4 +5,12 @@ import org.apache.kafka.clients.consumer.ConsumerRecords;
 public interface Handler<K, V> {
 
     void handle(ConsumerRecords<K, V> records);
+
+    /**
+     * @return true if handler persists consumed offsets atomically with handled records,
+     *         so consumer must not save them on its own
+     */
+    default boolean savesOffsets() {
+        return false;
+    }
 }
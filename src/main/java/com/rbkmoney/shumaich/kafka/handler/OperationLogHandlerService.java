@@ -3,52 +3,228 @@ package com.rbkmoney.shumaich.kafka.handler;
 
 import com.rbkmoney.damsel.shumaich.OperationLog;
 import com.rbkmoney.kafka.common.util.LogUtil;
+import com.rbkmoney.shumaich.config.ApplyProperties;
 import com.rbkmoney.shumaich.service.BalanceService;
+import com.rbkmoney.shumaich.service.InMemoryBalanceEngine;
+import com.rbkmoney.shumaich.service.KafkaOffsetService;
 import com.rbkmoney.shumaich.utils.MdcUtils;
-import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PreDestroy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 @Slf4j
 @Component
-@RequiredArgsConstructor
 public class OperationLogHandlerService implements Handler<Long, OperationLog> {
 
     private final BalanceService balanceService;
+    private final KafkaOffsetService kafkaOffsetService;
+    private final ApplyProperties applyProperties;
+    private final InMemoryBalanceEngine inMemoryBalanceEngine;
+    private final ExecutorService stripeExecutor;
+
+    public OperationLogHandlerService(
+            BalanceService balanceService,
+            KafkaOffsetService kafkaOffsetService,
+            ApplyProperties applyProperties,
+            InMemoryBalanceEngine inMemoryBalanceEngine) {
+        checkStripes(applyProperties);
+        this.balanceService = balanceService;
+        this.kafkaOffsetService = kafkaOffsetService;
+        this.applyProperties = applyProperties;
+        this.inMemoryBalanceEngine = inMemoryBalanceEngine;
+        // the first stripe is applied by the consumer thread itself
+        this.stripeExecutor = Executors.newFixedThreadPool(Math.max(1, applyProperties.getStripes() - 1));
+    }
 
     @Override
     public void handle(ConsumerRecords<Long, OperationLog> records) {
         log.info("Received records: {}", LogUtil.toSummaryString(records));
+        if (applyProperties.getMode() == ApplyProperties.Mode.IN_MEMORY) {
+            inMemoryBalanceEngine.apply(records, this::isApplicable);
+            return;
+        }
+        if (applyProperties.getStripes() > 1) {
+            handleStriped(records);
+            return;
+        }
+        switch (applyProperties.getMode()) {
+            case GROUP_COMMIT:
+                balanceService.proceedBatch(
+                        collectOperationLogs(records), kafkaOffsetService.getLatestOffsets(records)
+                );
+                break;
+            case RECORD_WITH_OFFSETS:
+                handleWithOffsets(records);
+                break;
+            default:
+                handleRecords(records);
+        }
+    }
+
+    @Override
+    public boolean savesOffsets() {
+        return applyProperties.getMode() != ApplyProperties.Mode.RECORD;
+    }
+
+    @PreDestroy
+    public void shutdownStripeExecutor() {
+        stripeExecutor.shutdownNow();
+    }
+
+    private void handleRecords(ConsumerRecords<Long, OperationLog> records) {
+        for (ConsumerRecord<?, OperationLog> record : records) {
+            handleRecord(record.value());
+        }
+    }
+
+    private void handleRecord(OperationLog operationLog) {
+        try {
+            MdcUtils.setMdc(operationLog);
+            log.debug("{} processing started", operationLog.getOperationType());
+            switch (operationLog.getOperationType()) {
+                case HOLD:
+                    processHold(operationLog);
+                    break;
+                case COMMIT:
+                case ROLLBACK:
+                    processFinalOperation(operationLog);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Not supported operation: " + operationLog);
+            }
+            log.debug("{} processing finished", operationLog.getOperationType());
+        } finally {
+            MdcUtils.clearMdc();
+        }
+    }
+
+    /**
+     * Stripes are written by separate transactions, while RECORD_WITH_OFFSETS and GROUP_COMMIT write offsets
+     * atomically with the state they cover and IN_MEMORY keeps state per partition, so striping is supported
+     * only where consumer saves offsets.
+     */
+    private static void checkStripes(ApplyProperties applyProperties) {
+        if (applyProperties.getStripes() > 1 && applyProperties.getMode() != ApplyProperties.Mode.RECORD) {
+            throw new IllegalStateException("Account stripes are not supported in " + applyProperties.getMode()
+                                            + " apply mode");
+        }
+    }
+
+    /**
+     * Only operations of the same account need fixed order, so records are split into stripes by account
+     * and stripes are applied in parallel. Offsets are saved by consumer after every stripe has finished.
+     */
+    private void handleStriped(ConsumerRecords<Long, OperationLog> records) {
+        List<List<OperationLog>> stripes = splitByAccount(records);
+        List<Future<?>> stripeFutures = new ArrayList<>();
+        for (List<OperationLog> stripe : stripes.subList(1, stripes.size())) {
+            if (!stripe.isEmpty()) {
+                stripeFutures.add(stripeExecutor.submit(() -> applyStripe(stripe)));
+            }
+        }
+        if (!stripes.get(0).isEmpty()) {
+            applyStripe(stripes.get(0));
+        }
+        awaitStripes(stripeFutures);
+    }
+
+    private List<List<OperationLog>> splitByAccount(ConsumerRecords<Long, OperationLog> records) {
+        int stripesCount = applyProperties.getStripes();
+        List<List<OperationLog>> stripes = new ArrayList<>(stripesCount);
+        for (int i = 0; i < stripesCount; i++) {
+            stripes.add(new ArrayList<>());
+        }
         for (ConsumerRecord<?, OperationLog> record : records) {
-            OperationLog operationLog = record.value();
-            try {
-                MdcUtils.setMdc(operationLog);
-                log.debug("{} processing started", operationLog.getOperationType());
-                switch (operationLog.getOperationType()) {
-                    case HOLD:
-                        processHold(operationLog);
-                        break;
-                    case COMMIT:
-                    case ROLLBACK:
-                        processFinalOperation(operationLog);
-                        break;
-                    default:
-                        throw new IllegalArgumentException("Not supported operation: " + operationLog);
+            long accountId = record.value().getAccount().getId();
+            stripes.get(Math.floorMod(Long.hashCode(accountId), stripesCount)).add(record.value());
+        }
+        return stripes;
+    }
+
+    private void applyStripe(List<OperationLog> stripe) {
+        stripe.forEach(this::handleRecord);
+    }
+
+    private void awaitStripes(List<Future<?>> stripeFutures) {
+        try {
+            for (Future<?> stripeFuture : stripeFutures) {
+                stripeFuture.get();
+            }
+        } catch (InterruptedException e) {
+            stripeFutures.forEach(stripeFuture -> stripeFuture.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for stripes", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Stripe applying failed", e.getCause());
+        }
+    }
+
+    private void handleWithOffsets(ConsumerRecords<Long, OperationLog> records) {
+        for (TopicPartition topicPartition : records.partitions()) {
+            ConsumerRecord<Long, OperationLog> lastSkipped = null;
+            for (ConsumerRecord<Long, OperationLog> record : records.records(topicPartition)) {
+                OperationLog operationLog = record.value();
+                try {
+                    MdcUtils.setMdc(operationLog);
+                    if (isApplicable(operationLog)) {
+                        balanceService.proceedOperation(operationLog, kafkaOffsetService.getNextOffset(record));
+                        lastSkipped = null;
+                    } else {
+                        lastSkipped = record;
+                    }
+                } finally {
+                    MdcUtils.clearMdc();
                 }
-                log.debug("{} processing finished", operationLog.getOperationType());
-            } finally {
-                MdcUtils.clearMdc();
+            }
+            // skipped records still have to move offset, clocks of their writers wait for it
+            if (lastSkipped != null) {
+                kafkaOffsetService.saveOffsets(List.of(kafkaOffsetService.getNextOffset(lastSkipped)));
             }
         }
+    }
 
+    private List<OperationLog> collectOperationLogs(ConsumerRecords<Long, OperationLog> records) {
+        List<OperationLog> operationLogs = new ArrayList<>(records.count());
+        for (ConsumerRecord<?, OperationLog> record : records) {
+            operationLogs.add(record.value());
+        }
+        return collectApplicable(operationLogs);
     }
 
-    private void processHold(OperationLog operationLog) {
-        if (!balanceService.balanceExists(operationLog.getAccount().getId())) {
-            balanceService.createNewBalance(operationLog.getAccount());
+    private List<OperationLog> collectApplicable(List<OperationLog> operationLogs) {
+        List<OperationLog> applicable = new ArrayList<>(operationLogs.size());
+        for (OperationLog operationLog : operationLogs) {
+            if (isApplicable(operationLog)) {
+                applicable.add(operationLog);
+            }
         }
+        return applicable;
+    }
+
+    private boolean isApplicable(OperationLog operationLog) {
+        switch (operationLog.getOperationType()) {
+            case HOLD:
+                return true;
+            case COMMIT:
+            case ROLLBACK:
+                return operationLog.getValidationError() == null;
+            default:
+                throw new IllegalArgumentException("Not supported operation: " + operationLog);
+        }
+    }
+
+    private void processHold(OperationLog operationLog) {
         balanceService.proceedHold(operationLog);
     }
 
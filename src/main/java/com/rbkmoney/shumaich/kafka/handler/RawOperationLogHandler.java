@@ -0,0 +1,52 @@
+package com.rbkmoney.shumaich.kafka.handler;
+
+import com.rbkmoney.damsel.shumaich.OperationLog;
+import com.rbkmoney.shumaich.kafka.serde.OperationLogApplyFieldsDeserializer;
+import lombok.RequiredArgsConstructor;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Takes raw operation logs, so that poll thread only fetches bytes and decoding runs on apply workers.
+ */
+@Component
+@RequiredArgsConstructor
+public class RawOperationLogHandler implements Handler<Long, byte[]> {
+
+    private final OperationLogHandlerService operationLogHandlerService;
+    private final OperationLogApplyFieldsDeserializer deserializer = new OperationLogApplyFieldsDeserializer();
+
+    @Override
+    public void handle(ConsumerRecords<Long, byte[]> records) {
+        operationLogHandlerService.handle(deserialize(records));
+    }
+
+    @Override
+    public boolean savesOffsets() {
+        return operationLogHandlerService.savesOffsets();
+    }
+
+    private ConsumerRecords<Long, OperationLog> deserialize(ConsumerRecords<Long, byte[]> records) {
+        Map<TopicPartition, List<ConsumerRecord<Long, OperationLog>>> deserialized = new HashMap<>();
+        for (TopicPartition topicPartition : records.partitions()) {
+            List<ConsumerRecord<Long, byte[]>> partitionRecords = records.records(topicPartition);
+            List<ConsumerRecord<Long, OperationLog>> operationLogs = new ArrayList<>(partitionRecords.size());
+            for (ConsumerRecord<Long, byte[]> record : partitionRecords) {
+                operationLogs.add(new ConsumerRecord<>(
+                        record.topic(), record.partition(), record.offset(), record.key(),
+                        deserializer.deserialize(record.value())
+                ));
+            }
+            deserialized.put(topicPartition, operationLogs);
+        }
+        return new ConsumerRecords<>(deserialized);
+    }
+
+}
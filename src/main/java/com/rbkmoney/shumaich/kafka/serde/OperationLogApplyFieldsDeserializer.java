@@ -0,0 +1,111 @@
+package com.rbkmoney.shumaich.kafka.serde;
+
+import com.rbkmoney.damsel.shumaich.Account;
+import com.rbkmoney.damsel.shumaich.OperationLog;
+import com.rbkmoney.damsel.shumaich.OperationType;
+import com.rbkmoney.damsel.shumaich.ValidationError;
+import com.rbkmoney.shumaich.exception.SerdeException;
+import org.apache.thrift.TException;
+import org.apache.thrift.protocol.TBinaryProtocol;
+import org.apache.thrift.protocol.TField;
+import org.apache.thrift.protocol.TProtocol;
+import org.apache.thrift.protocol.TProtocolUtil;
+import org.apache.thrift.protocol.TType;
+import org.apache.thrift.transport.TMemoryInputTransport;
+
+/**
+ * Decodes in one pass only fields needed to route and apply operation log. Description, currency,
+ * creation time and trace ids are skipped without building strings for them.
+ */
+public class OperationLogApplyFieldsDeserializer {
+
+    public OperationLog deserialize(byte[] data) {
+        TProtocol protocol = new TBinaryProtocol(new TMemoryInputTransport(data));
+        OperationLog operationLog = new OperationLog();
+        try {
+            protocol.readStructBegin();
+            TField field = protocol.readFieldBegin();
+            while (field.type != TType.STOP) {
+                if (!readApplyField(protocol, field, operationLog)) {
+                    TProtocolUtil.skip(protocol, field.type);
+                }
+                protocol.readFieldEnd();
+                field = protocol.readFieldBegin();
+            }
+            protocol.readStructEnd();
+        } catch (TException e) {
+            throw new SerdeException("Can't deserialize operation log", e);
+        }
+        return operationLog;
+    }
+
+    private boolean readApplyField(TProtocol protocol, TField field, OperationLog operationLog) throws TException {
+        OperationLog._Fields fieldId = OperationLog._Fields.findByThriftId(field.id);
+        if (fieldId == null) {
+            return false;
+        }
+        switch (fieldId) {
+            case PLAN_ID:
+                if (field.type != TType.STRING) {
+                    return false;
+                }
+                operationLog.setPlanId(protocol.readString());
+                return true;
+            case OPERATION_TYPE:
+                if (field.type != TType.I32) {
+                    return false;
+                }
+                operationLog.setOperationType(OperationType.findByValue(protocol.readI32()));
+                return true;
+            case VALIDATION_ERROR:
+                if (field.type != TType.I32) {
+                    return false;
+                }
+                operationLog.setValidationError(ValidationError.findByValue(protocol.readI32()));
+                return true;
+            case ACCOUNT:
+                if (field.type != TType.STRUCT) {
+                    return false;
+                }
+                Account account = new Account();
+                account.read(protocol);
+                operationLog.setAccount(account);
+                return true;
+            case BATCH_ID:
+            case AMOUNT_WITH_SIGN:
+            case SEQUENCE_ID:
+            case PLAN_OPERATIONS_COUNT:
+            case BATCH_HASH:
+                if (field.type != TType.I64) {
+                    return false;
+                }
+                setLongField(operationLog, fieldId, protocol.readI64());
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private void setLongField(OperationLog operationLog, OperationLog._Fields fieldId, long value) {
+        switch (fieldId) {
+            case BATCH_ID:
+                operationLog.setBatchId(value);
+                break;
+            case AMOUNT_WITH_SIGN:
+                operationLog.setAmountWithSign(value);
+                break;
+            case SEQUENCE_ID:
+                operationLog.setSequenceId(value);
+                break;
+            case PLAN_OPERATIONS_COUNT:
+                operationLog.setPlanOperationsCount(value);
+                break;
+            case BATCH_HASH:
+                operationLog.setBatchHash(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Not a long field: " + fieldId);
+        }
+    }
+
+}
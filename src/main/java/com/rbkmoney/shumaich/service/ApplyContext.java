@@ -0,0 +1,53 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.damsel.shumaich.OperationLog;
+import com.rbkmoney.shumaich.domain.Balance;
+import com.rbkmoney.shumaich.domain.Plan;
+import lombok.Getter;
+import org.rocksdb.Transaction;
+import org.rocksdb.WriteBatch;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Balance deltas and plan segments touched by one transaction. Every key is read at most once, changes are kept
+ * in memory and written with one put or delete per key right before commit.
+ */
+@Getter
+class ApplyContext {
+
+    // only one of them is set, depending on storage engine
+    private final Transaction transaction;
+    private final WriteBatch writeBatch;
+    // sorted, so that every transaction locks balance rows in the same order
+    private final Map<Long, BalanceDelta> balanceDeltas = new TreeMap<>();
+    // written balances, they get to the balance cache only after commit
+    private final List<Balance> savedBalances = new ArrayList<>();
+    // null value stands for absent segment
+    private final Map<String, Plan> plans = new HashMap<>();
+    private final Set<String> modifiedPlans = new HashSet<>();
+    // accounts of these operations are checked for finished plans before commit
+    private final List<OperationLog> finalOperations = new ArrayList<>();
+
+    ApplyContext(Transaction transaction) {
+        this.transaction = transaction;
+        this.writeBatch = null;
+    }
+
+    ApplyContext(WriteBatch writeBatch) {
+        this.transaction = null;
+        this.writeBatch = writeBatch;
+    }
+
+    void updatePlan(String key, Plan plan) {
+        plans.put(key, plan);
+        modifiedPlans.add(key);
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.rbkmoney.shumaich.service;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.rbkmoney.shumaich.config.ApplyProperties;
+import com.rbkmoney.shumaich.domain.Balance;
+import org.springframework.stereotype.Component;
+
+import java.util.Collection;
+
+/**
+ * Read cache of committed balances, updated after commit: writes always go to RocksDB first, the cache only
+ * saves hot accounts from being read and parsed on every batch. Balance of an account is written only
+ * by the consumer owning its partition, so cached value stays equal to the stored one. Copies are handed out,
+ * changes of uncommitted transaction never reach the cache.
+ */
+@Component
+public class BalanceCache {
+
+    private final boolean enabled;
+    private final Cache<Long, Balance> balances;
+
+    public BalanceCache(ApplyProperties applyProperties) {
+        this.enabled = applyProperties.getBalanceCache().isEnabled();
+        this.balances = CacheBuilder.newBuilder()
+                .maximumSize(applyProperties.getBalanceCache().getMaxSize())
+                .build();
+    }
+
+    public Balance get(Long accountId) {
+        if (!enabled) {
+            return null;
+        }
+        Balance balance = balances.getIfPresent(accountId);
+        return balance == null ? null : copy(balance);
+    }
+
+    public void putAll(Collection<Balance> committedBalances) {
+        if (!enabled) {
+            return;
+        }
+        for (Balance balance : committedBalances) {
+            balances.put(balance.getAccountId(), copy(balance));
+        }
+    }
+
+    /**
+     * Used when commit outcome is unknown.
+     */
+    public void invalidateAll(Collection<Long> accountIds) {
+        balances.invalidateAll(accountIds);
+    }
+
+    private Balance copy(Balance balance) {
+        return new Balance(
+                balance.getAccountId(),
+                balance.getCurrencySymbolicCode(),
+                balance.getAmount(),
+                balance.getMinAmount(),
+                balance.getMaxAmount()
+        );
+    }
+
+}
@@ -0,0 +1,67 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.damsel.shumaich.Account;
+import com.rbkmoney.damsel.shumaich.OperationLog;
+import com.rbkmoney.shumaich.domain.Balance;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+
+/**
+ * Net change of one account collected over operation logs of a transaction. Operations only shift balance
+ * fields by their amounts, so applying the sum once gives the same balance as applying them one by one.
+ */
+@Getter
+@RequiredArgsConstructor
+class BalanceDelta {
+
+    private final Account account;
+    private long amount;
+    private long minAmount;
+    private long maxAmount;
+
+    void add(OperationLog operationLog) {
+        long operationAmount = operationLog.getAmountWithSign();
+        switch (operationLog.getOperationType()) {
+            case HOLD:
+                if (operationAmount > 0) {
+                    maxAmount += operationAmount;
+                } else {
+                    minAmount += operationAmount;
+                }
+                break;
+            case COMMIT:
+                amount += operationAmount;
+                // добавление min/max amount захолдированной суммы (по протоколу)
+                if (operationAmount > 0) {
+                    minAmount += operationAmount;
+                } else {
+                    maxAmount += operationAmount;
+                }
+                break;
+            case ROLLBACK:
+                if (operationAmount > 0) {
+                    maxAmount -= operationAmount;
+                } else {
+                    minAmount -= operationAmount;
+                }
+                break;
+            default:
+                throw new RuntimeException("It's impossible");
+        }
+    }
+
+    Balance applyTo(Balance balance) {
+        balance.setAmount(balance.getAmount() + amount);
+        balance.setMinAmount(balance.getMinAmount() + minAmount);
+        balance.setMaxAmount(balance.getMaxAmount() + maxAmount);
+        return balance;
+    }
+
+    /**
+     * @return change itself as balance, for layouts that add it to stored amounts without reading them
+     */
+    Balance toChange() {
+        return new Balance(account.getId(), account.getCurrencySymbolicCode(), amount, minAmount, maxAmount);
+    }
+
+}
@@ -2,123 +2,289 @@ package com.rbkmoney.shumaich.service;
 
 import com.rbkmoney.damsel.shumaich.Account;
 import com.rbkmoney.damsel.shumaich.OperationLog;
+import com.rbkmoney.damsel.shumaich.OperationType;
+import com.rbkmoney.shumaich.config.RocksDbProperties;
 import com.rbkmoney.shumaich.dao.BalanceDao;
 import com.rbkmoney.shumaich.domain.Balance;
+import com.rbkmoney.shumaich.domain.KafkaOffset;
+import com.rbkmoney.shumaich.domain.Plan;
 import com.rbkmoney.shumaich.exception.AccountNotFoundException;
 import com.rbkmoney.shumaich.exception.DaoException;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.rocksdb.OptimisticTransactionDB;
+import org.rocksdb.OptimisticTransactionOptions;
+import org.rocksdb.RocksDB;
 import org.rocksdb.RocksDBException;
+import org.rocksdb.Status;
 import org.rocksdb.Transaction;
 import org.rocksdb.TransactionDB;
+import org.rocksdb.TransactionOptions;
+import org.rocksdb.WriteBatch;
 import org.rocksdb.WriteOptions;
 import org.springframework.stereotype.Service;
 
+import java.util.ArrayList;
+import java.util.List;
+
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class BalanceService {
 
+    private static final String CONFLICTS_METRIC = "shumaich.transaction.conflicts";
+
     private final BalanceDao balanceDao;
     private final PlanService planService;
-    private final TransactionDB rocksDB;
+    private final KafkaOffsetService kafkaOffsetService;
+    private final RocksDB rocksDB;
+    private final RocksDbProperties rocksDbProperties;
+    private final BalanceCache balanceCache;
+    private final WriteOptions writeOptions;
+    private final TransactionOptions transactionOptions;
+    private final OptimisticTransactionOptions optimisticTransactionOptions;
+    private final MeterRegistry meterRegistry;
+    private final WalSyncService walSyncService;
 
     public void createNewBalance(Account account) {
-        balanceDao.put(Balance.builder()
-                .accountId(getKey(account))
-                .currencySymbolicCode(account.getCurrencySymbolicCode())
-                .amount(0L)
-                .minAmount(0L)
-                .maxAmount(0L)
-                .build()
-        );
+        balanceDao.put(buildNewBalance(account));
     }
 
     public void proceedHold(OperationLog operationLog) {
-        proceedOperation(operationLog);
+        proceedInTransaction(List.of(operationLog), List.of());
     }
 
     public void proceedFinalOp(OperationLog operationLog) {
-        proceedOperation(operationLog);
-        if (planService.isFinished(operationLog)) {
-            planService.deletePlan(operationLog.getPlanId());
-        }
+        proceedInTransaction(List.of(operationLog), List.of());
+    }
+
+    /**
+     * Applies operation log and its offset in one transaction. Plan is read under lock anyway,
+     * so it serves as idempotency check instead of a separate lookup.
+     */
+    public void proceedOperation(OperationLog operationLog, KafkaOffset kafkaOffset) {
+        proceedInTransaction(List.of(operationLog), List.of(kafkaOffset));
+    }
+
+    /**
+     * Applies all operation logs and consumed offsets in one transaction, so the whole poll costs one synced write.
+     */
+    public void proceedBatch(List<OperationLog> operationLogs, List<KafkaOffset> kafkaOffsets) {
+        proceedInTransaction(operationLogs, kafkaOffsets);
     }
 
-    public void proceedOperation(OperationLog operationLog) {
-        if (planService.operationLogExists(operationLog)) {
+    /**
+     * Optimistic transaction doesn't lock, its reads are validated on commit. Conflicting transaction is
+     * rolled back and applied again from scratch with freshly read plans and balances.
+     */
+    private void proceedInTransaction(List<OperationLog> operationLogs, List<KafkaOffset> kafkaOffsets) {
+        if (rocksDbProperties.getEngine() == RocksDbProperties.Engine.WRITE_BATCH) {
+            proceedInWriteBatch(operationLogs, kafkaOffsets);
             return;
         }
-        WriteOptions writeOptions = new WriteOptions().setSync(true); //NOSONAR write options are actually closed
-        Transaction transaction = rocksDB.beginTransaction(writeOptions);
+        int maxAttempts = rocksDbProperties.getEngine() == RocksDbProperties.Engine.OPTIMISTIC_TRANSACTION_DB
+                ? rocksDbProperties.getConflictAttempts()
+                : 1;
+        for (int attempt = 1; ; attempt++) {
+            if (commitInTransaction(operationLogs, kafkaOffsets, attempt < maxAttempts)) {
+                return;
+            }
+            log.debug("Transaction conflict, operationLogs: {}, attempt: {}", operationLogs.size(), attempt);
+        }
+    }
+
+    /**
+     * @return false if transaction conflicted and was rolled back to be retried
+     */
+    private boolean commitInTransaction(
+            List<OperationLog> operationLogs,
+            List<KafkaOffset> kafkaOffsets,
+            boolean retryConflict) {
+        Transaction transaction = beginTransaction();
+        ApplyContext applyContext = new ApplyContext(transaction);
+        long writeSize;
+        boolean committed = false;
         try {
-            formTransaction(operationLog, transaction);
+            for (OperationLog operationLog : operationLogs) {
+                proceedOperation(applyContext, operationLog);
+            }
+            saveBalances(applyContext);
+            planService.savePlans(applyContext);
+            kafkaOffsetService.saveOffsets(transaction, kafkaOffsets);
+            writeSize = walSyncService.getWriteSize(transaction);
             transaction.commit();
+            committed = true;
         } catch (RocksDBException e) {
-            log.error("Error in proceedHold, operationLog: {}", operationLog);
-            rollbackTransaction(writeOptions, transaction);
-            throw new DaoException("Error in proceedHold, operationLog: " + operationLog, e);
+            rollbackTransaction(transaction);
+            if (isConflict(e)) {
+                meterRegistry.counter(CONFLICTS_METRIC, "outcome", retryConflict ? "retried" : "failed").increment();
+                if (retryConflict) {
+                    return false;
+                }
+            }
+            log.error("Error in proceedInTransaction, operationLogs: {}, kafkaOffsets: {}",
+                    operationLogs.size(), kafkaOffsets);
+            throw new DaoException("Error in proceedInTransaction, kafkaOffsets: " + kafkaOffsets, e);
         } finally {
+            updateCachedBalances(applyContext, operationLogs, committed);
             transaction.close();
-            writeOptions.close();
         }
+        walSyncService.written(writeSize);
+        return true;
     }
 
-    private void rollbackTransaction(WriteOptions writeOptions, Transaction transaction) {
-        try {
-            transaction.rollback();
-            writeOptions.close();
-        } catch (RocksDBException ex) {
-            log.error("Can't rollback transaction, lol", ex);
+    private Transaction beginTransaction() {
+        if (rocksDbProperties.getEngine() == RocksDbProperties.Engine.OPTIMISTIC_TRANSACTION_DB) {
+            return ((OptimisticTransactionDB) rocksDB).beginTransaction(writeOptions, optimisticTransactionOptions);
         }
+        return ((TransactionDB) rocksDB).beginTransaction(writeOptions, transactionOptions);
     }
 
-    private void formTransaction(OperationLog operationLog, Transaction transaction) {
-        Balance balanceForUpdate = balanceDao.getForUpdate(transaction, getKey(operationLog.getAccount()));
-        Balance balance = calculateBalance(balanceForUpdate, operationLog);
-        balanceDao.putInTransaction(transaction, balance);
+    /**
+     * Optimistic commit fails with Busy when validated key was changed after it was read, and with TryAgain
+     * when memtable history is too short to validate. Deadlock of pessimistic transaction is also Busy.
+     */
+    private boolean isConflict(RocksDBException e) {
+        Status status = e.getStatus();
+        return status != null
+               && (status.getCode() == Status.Code.Busy || status.getCode() == Status.Code.TryAgain);
+    }
 
-        planService.processPlanModification(transaction, operationLog);
+    /**
+     * Same as transaction, but without row locks: reads see committed data of keys owned by this consumer
+     * thread and all writes go to RocksDB as one atomic batch.
+     */
+    private void proceedInWriteBatch(List<OperationLog> operationLogs, List<KafkaOffset> kafkaOffsets) {
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            ApplyContext applyContext = new ApplyContext(writeBatch);
+            boolean written = false;
+            try {
+                for (OperationLog operationLog : operationLogs) {
+                    proceedOperation(applyContext, operationLog);
+                }
+                saveBalances(applyContext);
+                planService.savePlans(applyContext);
+                kafkaOffsetService.saveOffsets(writeBatch, kafkaOffsets);
+                rocksDB.write(writeOptions, writeBatch);
+                written = true;
+            } finally {
+                updateCachedBalances(applyContext, operationLogs, written);
+            }
+            walSyncService.written(writeBatch);
+        } catch (RocksDBException e) {
+            log.error("Error in proceedInWriteBatch, operationLogs: {}, kafkaOffsets: {}",
+                    operationLogs.size(), kafkaOffsets);
+            throw new DaoException("Error in proceedInWriteBatch, kafkaOffsets: " + kafkaOffsets, e);
+        }
     }
 
-    private Long getKey(com.rbkmoney.damsel.shumaich.Account account) {
-        return account.getId();
+    private void proceedOperation(ApplyContext applyContext, OperationLog operationLog) {
+        Plan plan = planService.getPlanForUpdate(applyContext, operationLog);
+        if (planService.containsOperationLog(plan, operationLog)) {
+            return;
+        }
+        if (!planService.isFinalOperationApplicable(applyContext.getPlans(), operationLog)) {
+            log.warn("Final operation is skipped, its hold is absent or finished, planId: {}, batchId: {}",
+                    operationLog.getPlanId(), operationLog.getBatchId());
+            return;
+        }
+        Account account = operationLog.getAccount();
+        applyContext.getBalanceDeltas()
+                .computeIfAbsent(getKey(account), accountId -> new BalanceDelta(account))
+                .add(operationLog);
+
+        planService.processPlanModification(applyContext, operationLog, plan);
+        if (operationLog.getOperationType() != OperationType.HOLD) {
+            applyContext.getFinalOperations().add(operationLog);
+        }
     }
 
-    private Balance calculateBalance(Balance balance, OperationLog operationLog) {
-        Long amount = operationLog.getAmountWithSign();
-        switch (operationLog.getOperationType()) {
-            case HOLD:
-                if (amount > 0) {
-                    balance.setMaxAmount(balance.getMaxAmount() + amount);
-                } else {
-                    balance.setMinAmount(balance.getMinAmount() + amount);
-                }
-                break;
-            case COMMIT:
-                balance.setAmount(balance.getAmount() + amount);
-                // добавление min/max amount захолдированной суммы (по протоколу)
-                if (amount > 0) {
-                    balance.setMinAmount(balance.getMinAmount() + amount);
-                } else {
-                    balance.setMaxAmount(balance.getMaxAmount() + amount);
-                }
-                break;
-            case ROLLBACK:
-                if (amount > 0) {
-                    balance.setMaxAmount(balance.getMaxAmount() - amount);
-                } else {
-                    balance.setMinAmount(balance.getMinAmount() - amount);
-                }
-                break;
-            default:
-                throw new RuntimeException("It's impossible");
+    /**
+     * Hot accounts get many operations per batch, their net change is applied with one read and one write.
+     * Read of recently applied account is served by balance cache without parsing stored balance.
+     */
+    private void saveBalances(ApplyContext applyContext) {
+        if (rocksDbProperties.getBalanceLayout() == RocksDbProperties.BalanceLayout.COUNTERS) {
+            mergeBalances(applyContext);
+            return;
+        }
+        Transaction transaction = applyContext.getTransaction();
+        for (BalanceDelta balanceDelta : applyContext.getBalanceDeltas().values()) {
+            Long accountId = getKey(balanceDelta.getAccount());
+            Balance balance = balanceCache.get(accountId);
+            if (balance == null) {
+                balance = transaction != null
+                        ? balanceDao.getForUpdate(transaction, accountId)
+                        : balanceDao.get(accountId);
+            }
+            if (balance == null) {
+                balance = buildNewBalance(balanceDelta.getAccount());
+            }
+            balance = balanceDelta.applyTo(balance);
+            if (transaction != null) {
+                balanceDao.putInTransaction(transaction, balance);
+            } else {
+                balanceDao.putInBatch(applyContext.getWriteBatch(), balance);
+            }
+            applyContext.getSavedBalances().add(balance);
+        }
+    }
+
+    /**
+     * Counters are changed by blind merges, so there is nothing to read and balance cache is not used.
+     */
+    private void mergeBalances(ApplyContext applyContext) {
+        Transaction transaction = applyContext.getTransaction();
+        for (BalanceDelta balanceDelta : applyContext.getBalanceDeltas().values()) {
+            if (transaction != null) {
+                balanceDao.mergeInTransaction(transaction, balanceDelta.toChange());
+            } else {
+                balanceDao.mergeInBatch(applyContext.getWriteBatch(), balanceDelta.toChange());
+            }
+        }
+    }
+
+    /**
+     * Cache must follow every outcome: written balances replace cached ones, otherwise cached balances
+     * of the whole batch are dropped and read from RocksDB next time.
+     */
+    private void updateCachedBalances(ApplyContext applyContext, List<OperationLog> operationLogs, boolean written) {
+        if (written) {
+            balanceCache.putAll(applyContext.getSavedBalances());
+        } else {
+            invalidateCachedBalances(operationLogs);
         }
-        return balance;
     }
 
-    public boolean balanceExists(Long accountId) {
-        return balanceDao.get(accountId) != null;
+    private void invalidateCachedBalances(List<OperationLog> operationLogs) {
+        List<Long> accountIds = new ArrayList<>(operationLogs.size());
+        for (OperationLog operationLog : operationLogs) {
+            accountIds.add(getKey(operationLog.getAccount()));
+        }
+        balanceCache.invalidateAll(accountIds);
+    }
+
+    private void rollbackTransaction(Transaction transaction) {
+        try {
+            transaction.rollback();
+        } catch (RocksDBException ex) {
+            log.error("Can't rollback transaction, lol", ex);
+        }
+    }
+
+    Balance buildNewBalance(Account account) {
+        return Balance.builder()
+                .accountId(getKey(account))
+                .currencySymbolicCode(account.getCurrencySymbolicCode())
+                .amount(0L)
+                .minAmount(0L)
+                .maxAmount(0L)
+                .build();
+    }
+
+    private Long getKey(com.rbkmoney.damsel.shumaich.Account account) {
+        return account.getId();
     }
 
     public com.rbkmoney.damsel.shumaich.Balance getBalance(Long accountId) {
@@ -13,6 +13,7 @@ import org.springframework.stereotype.Service;
 
 import java.util.Collections;
 import java.util.List;
+import java.util.function.IntPredicate;
 import java.util.stream.Collectors;
 
 import static org.apache.commons.lang3.StringUtils.isBlank;
@@ -49,7 +50,10 @@ public class ClockService {
                 .collect(Collectors.toList());
     }
 
-    public void hardCheckClockTimeline(com.rbkmoney.damsel.shumaich.Clock clock) {
+    /**
+     * @param checkedPartition partitions whose stored offsets are current, the others are skipped
+     */
+    public void hardCheckClockTimeline(com.rbkmoney.damsel.shumaich.Clock clock, IntPredicate checkedPartition) {
         if (clock == null || clock.isSetLatest()) {
             throw new IllegalArgumentException("Clock can't be latest");
         }
@@ -60,6 +64,9 @@ public class ClockService {
             throw new IllegalArgumentException("Clock can't be empty");
         }
 
+        kafkaOffsets = kafkaOffsets.stream()
+                .filter(kafkaOffset -> checkedPartition.test(kafkaOffset.getTopicPartition().partition()))
+                .collect(Collectors.toList());
         if (!kafkaOffsetService.isBeforeCurrentOffsets(kafkaOffsets)) {
             throw new NotReadyException();
         }
@@ -0,0 +1,186 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.damsel.shumaich.Account;
+import com.rbkmoney.damsel.shumaich.OperationLog;
+import com.rbkmoney.damsel.shumaich.OperationType;
+import com.rbkmoney.shumaich.config.ApplyProperties;
+import com.rbkmoney.shumaich.dao.BalanceDao;
+import com.rbkmoney.shumaich.dao.PlanDao;
+import com.rbkmoney.shumaich.domain.Balance;
+import com.rbkmoney.shumaich.domain.KafkaOffset;
+import com.rbkmoney.shumaich.domain.Plan;
+import com.rbkmoney.shumaich.exception.DaoException;
+import com.rbkmoney.shumaich.exception.ReplayRequiredException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Applies operation logs to partition state in memory, RocksDB is only a snapshot store. State of a partition
+ * is changed by the single consumer thread owning it, so there are no locks besides the uncontended monitor
+ * shared with the snapshot task. Snapshot writes changed entries with the partition offset atomically, so
+ * stored offset never runs ahead of stored balances and clocks see complete data. Kafka stays the source
+ * of truth: after restart or failure state is loaded from the snapshot and the rest is replayed.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class InMemoryBalanceEngine {
+
+    private final BalanceService balanceService;
+    private final BalanceDao balanceDao;
+    private final PlanDao planDao;
+    private final PlanService planService;
+    private final KafkaOffsetService kafkaOffsetService;
+    private final ApplyProperties applyProperties;
+    private final RocksDB rocksDB;
+    private final WriteOptions writeOptions;
+    private final WalSyncService walSyncService;
+    private final Map<TopicPartition, PartitionState> partitionStates = new ConcurrentHashMap<>();
+
+    public <K> void apply(ConsumerRecords<K, OperationLog> records, Predicate<OperationLog> applicable) {
+        for (TopicPartition topicPartition : records.partitions()) {
+            PartitionState partitionState = partitionStates.computeIfAbsent(topicPartition, this::loadState);
+            synchronized (partitionState) {
+                try {
+                    for (ConsumerRecord<K, OperationLog> record : records.records(topicPartition)) {
+                        applyRecord(partitionState, record, applicable);
+                    }
+                } catch (RuntimeException e) {
+                    // state may be changed partially, it is rebuilt from the snapshot by replay
+                    partitionStates.remove(topicPartition);
+                    throw e;
+                }
+                if (partitionState.getAppliedSinceSnapshot() >= applyProperties.getInMemory().getSnapshotRecords()) {
+                    snapshot(topicPartition, partitionState);
+                }
+            }
+        }
+    }
+
+    /**
+     * Idle partitions still have to be written, otherwise their clocks would never become visible.
+     */
+    @Scheduled(fixedDelayString = "${apply.in-memory.snapshot-interval-ms}")
+    public void snapshotOutdated() {
+        long snapshotTimeLimitMs = System.currentTimeMillis() - applyProperties.getInMemory().getSnapshotIntervalMs();
+        partitionStates.forEach((topicPartition, partitionState) -> {
+            synchronized (partitionState) {
+                if (partitionState.getSnapshotTimeMs() <= snapshotTimeLimitMs
+                    && partitionStates.get(topicPartition) == partitionState) {
+                    snapshot(topicPartition, partitionState);
+                }
+            }
+        });
+    }
+
+    private PartitionState loadState(TopicPartition topicPartition) {
+        long storedOffset = kafkaOffsetService.loadOffsets(List.of(topicPartition)).stream()
+                .mapToLong(KafkaOffset::getOffset)
+                .findFirst()
+                .orElse(-1L);
+        log.info("Partition state is loaded from snapshot, partition: {}, offset: {}", topicPartition, storedOffset);
+        return new PartitionState(storedOffset);
+    }
+
+    private void applyRecord(
+            PartitionState partitionState,
+            ConsumerRecord<?, OperationLog> record,
+            Predicate<OperationLog> applicable) {
+        long nextOffset = partitionState.getNextOffset();
+        if (record.offset() < nextOffset) {
+            return;
+        }
+        if (nextOffset >= 0 && record.offset() > nextOffset) {
+            throw new ReplayRequiredException(String.format(
+                    "Records of %s-%d are missing from offset %d to %d",
+                    record.topic(), record.partition(), nextOffset, record.offset()
+            ));
+        }
+        if (applicable.test(record.value())) {
+            applyOperation(partitionState, record.value());
+        }
+        partitionState.moveOffset(record.offset());
+    }
+
+    private void applyOperation(PartitionState partitionState, OperationLog operationLog) {
+        String planKey = planService.getSegmentKey(operationLog);
+        Map<String, Plan> plans = partitionState.getPlans();
+        if (!plans.containsKey(planKey)) {
+            plans.put(planKey, planService.getStoredSegment(null, operationLog));
+        }
+        Plan plan = plans.get(planKey);
+        if (planService.containsOperationLog(plan, operationLog)) {
+            return;
+        }
+        if (!planService.isFinalOperationApplicable(plans, operationLog)) {
+            log.warn("Final operation is skipped, its hold is absent or finished, planId: {}, batchId: {}",
+                    operationLog.getPlanId(), operationLog.getBatchId());
+            return;
+        }
+
+        Account account = operationLog.getAccount();
+        Balance balance = partitionState.getBalances()
+                .computeIfAbsent(account.getId(), accountId -> loadBalance(account));
+        BalanceDelta balanceDelta = new BalanceDelta(account);
+        balanceDelta.add(operationLog);
+        balanceDelta.applyTo(balance);
+        partitionState.updateBalance(account.getId());
+
+        partitionState.updatePlan(planKey, planService.applyToPlan(operationLog, plan));
+        if (operationLog.getOperationType() != OperationType.HOLD) {
+            partitionState.getFinalOperations().add(operationLog);
+        }
+    }
+
+    private Balance loadBalance(Account account) {
+        Balance balance = balanceDao.get(account.getId());
+        return balance != null ? balance : balanceService.buildNewBalance(account);
+    }
+
+    private void snapshot(TopicPartition topicPartition, PartitionState partitionState) {
+        if (!partitionState.isModified()) {
+            return;
+        }
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            for (Long accountId : partitionState.getModifiedBalances()) {
+                balanceDao.putInBatch(writeBatch, partitionState.getBalances().get(accountId));
+            }
+            planService.deleteFinishedSegments(
+                    partitionState.getPlans(), partitionState.getFinalOperations(), partitionState::updatePlan
+            );
+            for (String planKey : partitionState.getModifiedPlans()) {
+                Plan plan = partitionState.getPlans().get(planKey);
+                if (plan == null) {
+                    planDao.deleteInBatch(writeBatch, planKey);
+                } else {
+                    planDao.putInBatch(writeBatch, planKey, plan);
+                }
+            }
+            planService.scheduleExpiry(writeBatch, partitionState.getModifiedPlans(), partitionState.getPlans());
+            kafkaOffsetService.saveOffsets(writeBatch, List.of(
+                    new KafkaOffset(topicPartition, partitionState.getNextOffset())
+            ));
+            rocksDB.write(writeOptions, writeBatch);
+            walSyncService.written(writeBatch);
+        } catch (RocksDBException e) {
+            log.error("Can't write snapshot of partition: {}", topicPartition, e);
+            throw new DaoException("Can't write snapshot of partition: " + topicPartition, e);
+        }
+        partitionState.snapshotTaken();
+    }
+
+}
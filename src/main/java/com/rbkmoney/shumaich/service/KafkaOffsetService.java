@@ -6,8 +6,11 @@ import com.rbkmoney.shumaich.domain.KafkaOffset;
 import com.rbkmoney.shumaich.exception.DaoException;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.common.TopicPartition;
 import org.rocksdb.RocksDBException;
+import org.rocksdb.Transaction;
 import org.rocksdb.WriteBatch;
 import org.rocksdb.WriteOptions;
 import org.springframework.stereotype.Service;
@@ -27,6 +30,8 @@ import static java.util.stream.Collectors.toList;
 public class KafkaOffsetService {
 
     private final KafkaOffsetDao kafkaOffsetDao;
+    private final WriteOptions writeOptions;
+    private final WalSyncService walSyncService;
 
     public List<KafkaOffset> loadOffsets(Collection<TopicPartition> topicPartitions) {
         return topicPartitions.stream()
@@ -42,16 +47,50 @@ public class KafkaOffsetService {
     }
 
     public void saveOffsets(List<KafkaOffset> kafkaOffsets) {
-        try (WriteBatch writeBatch = new WriteBatch();
-                WriteOptions writeOptions = new WriteOptions().setSync(true)) {
+        try (WriteBatch writeBatch = new WriteBatch()) {
             prepareBatch(kafkaOffsets, writeBatch);
             kafkaOffsetDao.putBatch(writeOptions, writeBatch);
+            walSyncService.written(writeBatch);
         } catch (RocksDBException e) {
             log.error("Putting kafkaOffset to writeBatch exception:{}", kafkaOffsets, e);
             throw new DaoException("Putting kafkaOffset to writeBatch exception: " + kafkaOffsets, e);
         }
     }
 
+    public void saveOffsets(WriteBatch writeBatch, List<KafkaOffset> kafkaOffsets) {
+        try {
+            prepareBatch(kafkaOffsets, writeBatch);
+        } catch (RocksDBException e) {
+            log.error("Putting kafkaOffset to writeBatch exception:{}", kafkaOffsets, e);
+            throw new DaoException("Putting kafkaOffset to writeBatch exception: " + kafkaOffsets, e);
+        }
+    }
+
+    public void saveOffsets(Transaction transaction, List<KafkaOffset> kafkaOffsets) {
+        for (Map.Entry<String, Long> entry : convertToMap(kafkaOffsets).entrySet()) {
+            kafkaOffsetDao.putInTransaction(transaction, entry.getKey(), entry.getValue());
+        }
+    }
+
+    public List<KafkaOffset> getLatestOffsets(ConsumerRecords<?, ?> records) {
+        return records.partitions().stream()
+                .map(topicPartition -> getLatestKafkaOffset(records, topicPartition))
+                .collect(toList());
+    }
+
+    public KafkaOffset getNextOffset(ConsumerRecord<?, ?> record) {
+        return new KafkaOffset(
+                new TopicPartition(record.topic(), record.partition()),
+                record.offset() + 1 // +1 to not repeat read of the record
+        );
+    }
+
+    private KafkaOffset getLatestKafkaOffset(ConsumerRecords<?, ?> records, TopicPartition topicPartition) {
+        List<? extends ConsumerRecord<?, ?>> recordsForPartition = records.records(topicPartition);
+
+        return getNextOffset(recordsForPartition.get(recordsForPartition.size() - 1));
+    }
+
     private void prepareBatch(List<KafkaOffset> kafkaOffsets, WriteBatch writeBatch) throws RocksDBException {
         for (Map.Entry<String, Long> entry : convertToMap(kafkaOffsets).entrySet()) {
             writeBatch.put(kafkaOffsetDao.getColumnFamilyHandle(), entry.getKey().getBytes(),
@@ -0,0 +1,75 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.damsel.shumaich.OperationLog;
+import com.rbkmoney.shumaich.config.GroupMembershipProperties;
+import com.rbkmoney.shumaich.exception.NotReadyException;
+import com.rbkmoney.shumaich.kafka.TopicConsumptionManager;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.serialization.LongSerializer;
+import org.apache.kafka.common.utils.Utils;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.stereotype.Service;
+
+import java.util.Collection;
+import java.util.Set;
+
+/**
+ * With consumer group every instance applies only partitions it owns, and balances, plans and offsets of other
+ * partitions in its storage stop at the moment they were revoked. Such reads are refused, so clients retry them
+ * on the instance which owns the partition of the account, and local checks skip such partitions.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PartitionOwnershipService {
+
+    private final GroupMembershipProperties groupMembershipProperties;
+    private final KafkaTemplate<Long, OperationLog> kafkaTemplate;
+    private final ObjectProvider<TopicConsumptionManager<Long, ?>> topicConsumptionManager;
+    private final LongSerializer keySerializer = new LongSerializer();
+
+    /**
+     * @throws NotReadyException if partition of the account is owned by another instance
+     */
+    public void checkOwned(long accountId) {
+        if (!groupMembershipProperties.isEnabled()) {
+            return;
+        }
+        int partition = getPartition(accountId);
+        if (!isOwned(partition)) {
+            log.info("Partition {} of account is owned by another instance", partition);
+            throw new NotReadyException();
+        }
+    }
+
+    /**
+     * @return true if state of every account is applied by this instance
+     */
+    public boolean isOwned(Collection<Long> accountIds) {
+        if (!groupMembershipProperties.isEnabled()) {
+            return true;
+        }
+        Set<Integer> ownedPartitions = topicConsumptionManager.getObject().getGroupOwnedPartitions();
+        return accountIds.stream().allMatch(accountId -> ownedPartitions.contains(getPartition(accountId)));
+    }
+
+    /**
+     * @return true if partition of operation log is applied by this instance
+     */
+    public boolean isOwned(int partition) {
+        return !groupMembershipProperties.isEnabled()
+               || topicConsumptionManager.getObject().getGroupOwnedPartitions().contains(partition);
+    }
+
+    /**
+     * Same as partition chosen by default partitioner of the writer for the account key.
+     */
+    private int getPartition(long accountId) {
+        String topic = kafkaTemplate.getDefaultTopic();
+        int partitions = kafkaTemplate.partitionsFor(topic).size();
+        return Utils.toPositive(Utils.murmur2(keySerializer.serialize(topic, accountId))) % partitions;
+    }
+
+}
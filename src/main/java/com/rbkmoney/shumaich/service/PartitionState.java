@@ -0,0 +1,76 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.damsel.shumaich.OperationLog;
+import com.rbkmoney.shumaich.domain.Balance;
+import com.rbkmoney.shumaich.domain.Plan;
+import lombok.Getter;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Balances and plan segments of accounts routed to one partition, together with the offset they are applied up to.
+ * Changed entries are tracked to be written by the next snapshot.
+ */
+@Getter
+class PartitionState {
+
+    private final Map<Long, Balance> balances = new HashMap<>();
+    // null value stands for absent segment
+    private final Map<String, Plan> plans = new HashMap<>();
+    private final Set<Long> modifiedBalances = new HashSet<>();
+    private final Set<String> modifiedPlans = new HashSet<>();
+    // accounts of these operations are checked for finished plans by snapshot
+    private final List<OperationLog> finalOperations = new ArrayList<>();
+    // -1 until the first record, if partition has no stored offset
+    private long nextOffset;
+    private long snapshotOffset;
+    private long snapshotTimeMs;
+
+    PartitionState(long nextOffset) {
+        this.nextOffset = nextOffset;
+        this.snapshotOffset = nextOffset;
+        this.snapshotTimeMs = System.currentTimeMillis();
+    }
+
+    void updateBalance(Long accountId) {
+        modifiedBalances.add(accountId);
+    }
+
+    void updatePlan(String key, Plan plan) {
+        plans.put(key, plan);
+        modifiedPlans.add(key);
+    }
+
+    void moveOffset(long offset) {
+        nextOffset = offset + 1;
+    }
+
+    long getAppliedSinceSnapshot() {
+        return nextOffset - snapshotOffset;
+    }
+
+    boolean isModified() {
+        return nextOffset != snapshotOffset;
+    }
+
+    /**
+     * Balances applied since the previous snapshot stay in memory, the others haven't been touched for a whole
+     * interval and are dropped, so memory follows hot accounts only. Plan segments are mostly touched once
+     * per operation type, so they are read from the snapshot again if needed.
+     */
+    void snapshotTaken() {
+        balances.keySet().retainAll(modifiedBalances);
+        plans.clear();
+        modifiedBalances.clear();
+        modifiedPlans.clear();
+        finalOperations.clear();
+        snapshotOffset = nextOffset;
+        snapshotTimeMs = System.currentTimeMillis();
+    }
+
+}
@@ -0,0 +1,269 @@
+package com.rbkmoney.shumaich.service;
+
+import com.google.common.util.concurrent.Striped;
+import com.rbkmoney.damsel.shumaich.Account;
+import com.rbkmoney.damsel.shumaich.OperationType;
+import com.rbkmoney.shumaich.config.PlanExpiryProperties;
+import com.rbkmoney.shumaich.converter.CommonConverter;
+import com.rbkmoney.shumaich.dao.BalanceDao;
+import com.rbkmoney.shumaich.dao.PlanExpiryDao;
+import com.rbkmoney.shumaich.domain.Balance;
+import com.rbkmoney.shumaich.domain.Plan;
+import com.rbkmoney.shumaich.domain.PlanBatch;
+import com.rbkmoney.shumaich.domain.PlanExpiry;
+import com.rbkmoney.shumaich.domain.Posting;
+import com.rbkmoney.shumaich.domain.PostingBatch;
+import com.rbkmoney.shumaich.domain.PostingPlanOperation;
+import com.rbkmoney.shumaich.utils.HashUtils;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+
+/**
+ * Rolls back holds which neither got operations nor final operation registered within TTL. Rollback is written
+ * to operation log like the one of a client, so every instance applies it at the same position, reserved amounts
+ * are released and the plan is removed by the apply path. Plan with a final operation in flight is not touched:
+ * its final segments are already applied, or its final operation was registered here and isn't applied yet.
+ * Duplicated rollbacks, for example from other instances, are skipped by the apply path.
+ */
+@Slf4j
+@Service
+public class PlanExpiryService {
+
+    private static final int LOCK_STRIPES = 1024;
+    private static final String EXPIRY_DESCRIPTION = "Hold expired";
+
+    private final PlanService planService;
+    private final PlanExpiryDao planExpiryDao;
+    private final BalanceDao balanceDao;
+    private final WriterService writerService;
+    private final ClockService clockService;
+    private final KafkaOffsetService kafkaOffsetService;
+    private final PlanExpiryProperties planExpiryProperties;
+    private final DistributionSummary expiredSizeSummary;
+    private final Striped<Lock> planLocks = Striped.lock(LOCK_STRIPES);
+
+    public PlanExpiryService(
+            PlanService planService,
+            PlanExpiryDao planExpiryDao,
+            BalanceDao balanceDao,
+            WriterService writerService,
+            ClockService clockService,
+            KafkaOffsetService kafkaOffsetService,
+            PlanExpiryProperties planExpiryProperties,
+            MeterRegistry meterRegistry) {
+        this.planService = planService;
+        this.planExpiryDao = planExpiryDao;
+        this.balanceDao = balanceDao;
+        this.writerService = writerService;
+        this.clockService = clockService;
+        this.kafkaOffsetService = kafkaOffsetService;
+        this.planExpiryProperties = planExpiryProperties;
+        this.expiredSizeSummary = DistributionSummary.builder("shumaich.plan.expired.size")
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Validates and writes final operation of the plan, so that the plan can't expire in between.
+     * Deadline is postponed before the write in case its clock is lost by a crash right after it.
+     *
+     * @return clock of the written operation
+     */
+    public String writeFinalOperation(String planId, Supplier<List<RecordMetadata>> writer) {
+        if (!planExpiryProperties.isEnabled()) {
+            return clockService.formClock(writer.get());
+        }
+        Lock lock = planLocks.get(planId);
+        lock.lock();
+        try {
+            planExpiryDao.schedule(planId, planService.getExpiryDeadline());
+            String clock = clockService.formClock(writer.get());
+            planExpiryDao.putFinalOperationClock(planId, clock);
+            return clock;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${plan-expiry.sweep-interval-ms}")
+    public void sweep() {
+        if (!planExpiryProperties.isEnabled()) {
+            return;
+        }
+        int expiredPlans = 0;
+        long expiredBytes = 0;
+        List<PlanExpiry> due = planExpiryDao.getDue(System.currentTimeMillis(), planExpiryProperties.getSweepLimit());
+        for (PlanExpiry planExpiry : due) {
+            long planBytes;
+            Lock lock = planLocks.get(planExpiry.getPlanId());
+            lock.lock();
+            try {
+                planBytes = expire(planExpiry);
+            } finally {
+                lock.unlock();
+            }
+            if (planBytes > 0) {
+                expiredSizeSummary.record(planBytes);
+                expiredPlans++;
+                expiredBytes += planBytes;
+            }
+        }
+        if (expiredPlans > 0) {
+            log.info("Plans expired: {}, bytes to reclaim: {}", expiredPlans, expiredBytes);
+        }
+    }
+
+    /**
+     * @return size of the hold whose rollback was written, 0 if plan is kept or was already finished
+     */
+    private long expire(PlanExpiry planExpiry) {
+        String planId = planExpiry.getPlanId();
+        Long deadlineMs = planExpiryDao.getDeadline(planId);
+        if (deadlineMs != null && deadlineMs > planExpiry.getDeadlineMs()) {
+            // postponed, the later schedule entry stays
+            planExpiryDao.deleteScheduled(planExpiry);
+            return 0;
+        }
+        Map<String, Plan> segments = planService.getSegments(planId);
+        Map<String, Plan> holdSegments = planService.filterSegments(segments, planId, OperationType.HOLD);
+        if (holdSegments.isEmpty()) {
+            // finished, by client or by rollback of expiry
+            planExpiryDao.delete(planExpiry);
+            return 0;
+        }
+        if (planService.isFinished(planId, segments)) {
+            // finished at once by several consumers while legacy plan keys were read, none of them has seen it
+            log.info("Finished plan is left by apply and removed, planId: {}", planId);
+            planService.deletePlan(segments.keySet());
+            planExpiryDao.delete(planExpiry);
+            return 0;
+        }
+        if (isFinalOperationInFlight(planId, segments)) {
+            log.info("Final operation of plan is in flight, expiry is postponed, planId: {}", planId);
+            planExpiryDao.schedule(planId, planService.getExpiryDeadline());
+            return 0;
+        }
+        PostingPlanOperation rollback = buildRollback(planId, holdSegments);
+        if (rollback == null) {
+            log.warn("Hold can't be rebuilt for rollback, expiry is postponed, planId: {}", planId);
+            planExpiryDao.schedule(planId, planService.getExpiryDeadline());
+            return 0;
+        }
+        String clock = clockService.formClock(writerService.write(rollback));
+        planExpiryDao.putFinalOperationClock(planId, clock);
+        // checked again soon, index is dropped once the rollback has removed the plan
+        planExpiryDao.schedule(planId, System.currentTimeMillis() + planExpiryProperties.getSweepIntervalMs());
+        log.info("Rollback of expired hold is written, planId: {}, clock: {}", planId, clock);
+        return getSize(holdSegments);
+    }
+
+    private boolean isFinalOperationInFlight(String planId, Map<String, Plan> segments) {
+        if (!planService.filterSegments(segments, planId, OperationType.COMMIT).isEmpty()
+            || !planService.filterSegments(segments, planId, OperationType.ROLLBACK).isEmpty()) {
+            return true;
+        }
+        String clock = planExpiryDao.getFinalOperationClock(planId);
+        return clock != null && !kafkaOffsetService.isBeforeCurrentOffsets(clockService.parseClock(clock));
+    }
+
+    /**
+     * Every posting of a hold is applied as two operations with adjacent sequences starting from an even one:
+     * credit of its destination account first and debit of its source account next. Postings are restored
+     * in sequence order, so every instance writes the same rollback and its duplicates have the same sequences.
+     *
+     * @return null if some operation of the hold is not applied or was applied before amounts were kept
+     */
+    private PostingPlanOperation buildRollback(String planId, Map<String, Plan> holdSegments) {
+        String keyPrefix = planId + '_' + OperationType.HOLD + '_';
+        Map<Long, PlanBatch> batches = new TreeMap<>();
+        Map<Long, Map<Long, Long>> batchAccounts = new TreeMap<>();
+        for (Map.Entry<String, Plan> segment : holdSegments.entrySet()) {
+            if (!segment.getKey().startsWith(keyPrefix)) {
+                return null;
+            }
+            long accountId = Long.parseLong(segment.getKey().substring(keyPrefix.length()));
+            for (Map.Entry<Long, PlanBatch> batch : segment.getValue().getBatches().entrySet()) {
+                if (batch.getValue().getSequenceAmounts() == null) {
+                    return null;
+                }
+                PlanBatch mergedBatch = batches.computeIfAbsent(batch.getKey(), batchId -> new PlanBatch(
+                        null, batch.getValue().getSequencesTotal(), batch.getValue().getBatchHash(), new TreeMap<>()
+                ));
+                mergedBatch.getSequenceAmounts().putAll(batch.getValue().getSequenceAmounts());
+                Map<Long, Long> accounts = batchAccounts.computeIfAbsent(batch.getKey(), batchId -> new TreeMap<>());
+                batch.getValue().getSequenceAmounts().keySet().forEach(sequence -> accounts.put(sequence, accountId));
+            }
+        }
+        List<PostingBatch> postingBatches = new ArrayList<>();
+        for (Map.Entry<Long, PlanBatch> batch : batches.entrySet()) {
+            List<Posting> postings = buildPostings(batch.getValue(), batchAccounts.get(batch.getKey()));
+            if (postings == null || !HashUtils.areHashesEqual(postings, batch.getValue().getBatchHash())) {
+                return null;
+            }
+            postingBatches.add(new PostingBatch(batch.getKey(), postings));
+        }
+        return PostingPlanOperation.builder()
+                .planId(planId)
+                .postingBatches(postingBatches)
+                .operationType(OperationType.ROLLBACK)
+                .creationTime(LocalDateTime.now(ZoneOffset.UTC))
+                .build();
+    }
+
+    private List<Posting> buildPostings(PlanBatch batch, Map<Long, Long> accounts) {
+        Map<Long, Long> amounts = batch.getSequenceAmounts();
+        List<Long> sequences = new ArrayList<>(amounts.keySet());
+        if (sequences.size() % 2 != 0) {
+            return null;
+        }
+        List<Posting> postings = new ArrayList<>();
+        for (int i = 0; i < sequences.size(); i += 2) {
+            long sequence = sequences.get(i);
+            long amount = amounts.get(sequence);
+            Long debit = amounts.get(sequence + 1);
+            if (sequence % 2 != 0 || debit == null || amount != -debit) {
+                return null;
+            }
+            Account toAccount = getAccount(accounts.get(sequence));
+            Account fromAccount = getAccount(accounts.get(sequence + 1));
+            if (toAccount == null || fromAccount == null) {
+                return null;
+            }
+            postings.add(new Posting(
+                    fromAccount, toAccount, amount, toAccount.getCurrencySymbolicCode(), EXPIRY_DESCRIPTION
+            ));
+        }
+        // missing postings are caught by hash of the batch
+        return postings;
+    }
+
+    private Account getAccount(long accountId) {
+        Balance balance = balanceDao.get(accountId);
+        return balance == null ? null : new Account(accountId, balance.getCurrencySymbolicCode());
+    }
+
+    /**
+     * Segments are stored in serialized form, so their size is measured by serializing them back.
+     */
+    private long getSize(Map<String, Plan> segments) {
+        long bytes = 0;
+        for (Map.Entry<String, Plan> segment : segments.entrySet()) {
+            bytes += segment.getKey().getBytes().length + CommonConverter.toBytes(segment.getValue()).length;
+        }
+        return bytes;
+    }
+
+}
@@ -2,89 +2,403 @@ package com.rbkmoney.shumaich.service;
 
 import com.rbkmoney.damsel.shumaich.OperationLog;
 import com.rbkmoney.damsel.shumaich.OperationType;
+import com.rbkmoney.shumaich.config.ApplyProperties;
+import com.rbkmoney.shumaich.config.PlanExpiryProperties;
 import com.rbkmoney.shumaich.dao.PlanDao;
+import com.rbkmoney.shumaich.dao.PlanExpiryDao;
 import com.rbkmoney.shumaich.domain.Plan;
 import com.rbkmoney.shumaich.domain.PlanBatch;
 import lombok.RequiredArgsConstructor;
 import org.rocksdb.Transaction;
+import org.rocksdb.WriteBatch;
 import org.springframework.stereotype.Service;
 
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BiConsumer;
+import java.util.regex.Pattern;
 
 
 @Service
 @RequiredArgsConstructor
 public class PlanService {
 
+    private static final Pattern ACCOUNT_ID = Pattern.compile("-?\\d+");
+
     private final PlanDao planDao;
+    private final PlanExpiryDao planExpiryDao;
+    private final PlanExpiryProperties planExpiryProperties;
+    private final ApplyProperties applyProperties;
 
-    public boolean operationLogExists(OperationLog operationLog) {
-        Plan plan = planDao.get(getKey(operationLog));
+    public boolean containsOperationLog(Plan plan, OperationLog operationLog) {
         return plan != null
                && plan.getBatch(operationLog.getBatchId()) != null
                && plan.getBatch(operationLog.getBatchId()).containsSequenceValue(operationLog.getSequenceId());
     }
 
-    public void processPlanModification(Transaction transaction, OperationLog operationLog) {
-        Plan plan = planDao.getForUpdate(transaction, getKey(operationLog));
-        if (plan == null) {
-            createPlan(transaction, operationLog);
+    Plan getPlanForUpdate(ApplyContext applyContext, OperationLog operationLog) {
+        String key = getSegmentKey(operationLog);
+        Map<String, Plan> plans = applyContext.getPlans();
+        if (!plans.containsKey(key)) {
+            plans.put(key, getStoredSegment(applyContext.getTransaction(), operationLog));
+        }
+        return plans.get(key);
+    }
+
+    /**
+     * Plans written before splitting into segments keep progress of all accounts under one key. While legacy plan
+     * keys are read, such plan is taken as the segment, so its applied operations are still recognized, and is
+     * copied to the segment key on write.
+     *
+     * @param transaction null if segment is written only by this thread, so plain read is enough
+     */
+    Plan getStoredSegment(Transaction transaction, OperationLog operationLog) {
+        return getStoredSegment(transaction, operationLog.getPlanId(), operationLog.getOperationType(),
+                operationLog.getAccount().getId());
+    }
+
+    private Plan getStoredSegment(
+            Transaction transaction,
+            String planId,
+            OperationType operationType,
+            long accountId) {
+        String key = getSegmentKey(planId, operationType, accountId);
+        Plan plan = transaction != null ? planDao.getForUpdate(transaction, key) : planDao.get(key);
+        return plan != null || !applyProperties.isLegacyPlanKeys()
+                ? plan
+                : planDao.get(getKeyForPlan(planId, operationType));
+    }
+
+    /**
+     * Final operation is applied to an account only while the account has its hold batch with the same postings
+     * and the opposite final operation hasn't reached the batch. Late duplicates, final operations racing with each
+     * other or with rollback of expired hold are skipped by every instance alike, as the check depends on applied
+     * log only.
+     *
+     * @param plans segments already read or changed by the current write, segments read here are added to them
+     */
+    boolean isFinalOperationApplicable(Map<String, Plan> plans, OperationLog operationLog) {
+        OperationType operationType = operationLog.getOperationType();
+        if (operationType == OperationType.HOLD) {
+            return true;
+        }
+        String planId = operationLog.getPlanId();
+        long accountId = operationLog.getAccount().getId();
+        Plan hold = getSegment(plans, planId, OperationType.HOLD, accountId);
+        PlanBatch holdBatch = hold != null ? hold.getBatch(operationLog.getBatchId()) : null;
+        if (holdBatch == null || !isSameBatch(holdBatch, operationLog)) {
+            return false;
+        }
+        Plan opposite = getSegment(plans, planId, getOppositeType(operationType), accountId);
+        return opposite == null || opposite.getBatch(operationLog.getBatchId()) == null;
+    }
+
+    /**
+     * Final operation registered on instance not owning all accounts of the hold isn't validated there.
+     */
+    private static boolean isSameBatch(PlanBatch holdBatch, OperationLog operationLog) {
+        return holdBatch.getBatchHash() == null || holdBatch.getBatchHash() == operationLog.getBatchHash();
+    }
+
+    /**
+     * Segment is read once per write, so completion check finds segments of the account already read.
+     */
+    private Plan getSegment(Map<String, Plan> plans, String planId, OperationType operationType, long accountId) {
+        String key = getSegmentKey(planId, operationType, accountId);
+        if (!plans.containsKey(key)) {
+            plans.put(key, getStoredSegment(null, planId, operationType, accountId));
+        }
+        return plans.get(key);
+    }
+
+    private static OperationType getOppositeType(OperationType operationType) {
+        return operationType == OperationType.COMMIT ? OperationType.ROLLBACK : OperationType.COMMIT;
+    }
+
+    Plan processPlanModification(ApplyContext applyContext, OperationLog operationLog, Plan plan) {
+        Plan modifiedPlan = applyToPlan(operationLog, plan);
+        applyContext.updatePlan(getSegmentKey(operationLog), modifiedPlan);
+        return modifiedPlan;
+    }
+
+    Plan applyToPlan(OperationLog operationLog, Plan plan) {
+        return plan == null ? createPlan(operationLog) : addToPlan(operationLog, plan);
+    }
+
+    /**
+     * Deletes segments of accounts whose every held batch is reached by final operations. Final operation has
+     * the same postings as its hold, so account is checked by its own segments, which the write has already read,
+     * and is deleted by the consumer of its partition in the same write. Plan is gone with its last account.
+     *
+     * <p>Plan stored before splitting keeps sequences of all accounts, so while legacy plan keys are read every plan
+     * is checked as a whole by one scan per write. Plan finished at once by writes of several consumers may be left
+     * by all of them, it is removed by expiry sweep.
+     *
+     * @param plans segments read or changed by the current write
+     * @param planUpdater marks segment changed by the current write, deleted segment is set to null
+     */
+    void deleteFinishedSegments(
+            Map<String, Plan> plans,
+            List<OperationLog> finalOperations,
+            BiConsumer<String, Plan> planUpdater) {
+        Set<String> checkedKeys = new HashSet<>();
+        for (OperationLog operationLog : finalOperations) {
+            String planId = operationLog.getPlanId();
+            long accountId = operationLog.getAccount().getId();
+            if (applyProperties.isLegacyPlanKeys()) {
+                if (checkedKeys.add(planId)) {
+                    deleteIfFinished(planId, getSegments(plans, planId), planUpdater);
+                }
+            } else if (checkedKeys.add(getSegmentKey(planId, OperationType.HOLD, accountId))) {
+                Map<String, Plan> accountSegments = new HashMap<>();
+                for (OperationType operationType : OperationType.values()) {
+                    accountSegments.put(
+                            getSegmentKey(planId, operationType, accountId),
+                            getSegment(plans, planId, operationType, accountId)
+                    );
+                }
+                deleteIfFinished(planId, accountSegments, planUpdater);
+            }
+        }
+    }
+
+    private void deleteIfFinished(String planId, Map<String, Plan> segments, BiConsumer<String, Plan> planUpdater) {
+        if (isFinished(planId, segments)) {
+            segments.forEach((key, segment) -> {
+                if (segment != null) {
+                    planUpdater.accept(key, null);
+                }
+            });
+        }
+    }
+
+    /**
+     * @param segments segments of the plan by their keys, null value stands for absent segment
+     * @return true if every held sequence is reached by commit or rollback
+     */
+    boolean isFinished(String planId, Map<String, Plan> segments) {
+        Plan hold = combineSegments(planId, filterSegments(segments, planId, OperationType.HOLD).values());
+        if (hold == null) {
+            return false;
+        }
+        Plan commit = combineSegments(planId, filterSegments(segments, planId, OperationType.COMMIT).values());
+        Plan rollback = combineSegments(planId, filterSegments(segments, planId, OperationType.ROLLBACK).values());
+        for (Map.Entry<Long, PlanBatch> batch : hold.getBatches().entrySet()) {
+            Set<Long> finalSequences = new HashSet<>();
+            for (Plan finalPlan : Arrays.asList(commit, rollback)) {
+                PlanBatch finalBatch = finalPlan == null ? null : finalPlan.getBatch(batch.getKey());
+                if (finalBatch != null) {
+                    finalSequences.addAll(finalBatch.getSequencesArrived());
+                }
+            }
+            if (!finalSequences.containsAll(batch.getValue().getSequencesArrived())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes segments of a finished plan left behind by apply, in one write.
+     */
+    void deletePlan(Collection<String> keys) {
+        planDao.delete(keys);
+    }
+
+    void savePlans(ApplyContext applyContext) {
+        deleteFinishedSegments(applyContext.getPlans(), applyContext.getFinalOperations(), applyContext::updatePlan);
+        for (String key : applyContext.getModifiedPlans()) {
+            Plan plan = applyContext.getPlans().get(key);
+            Transaction transaction = applyContext.getTransaction();
+            if (transaction == null) {
+                savePlan(applyContext.getWriteBatch(), key, plan);
+            } else if (plan == null) {
+                planDao.deleteInTransaction(transaction, key);
+            } else {
+                planDao.putInTransaction(transaction, key, plan);
+            }
+        }
+        if (!planExpiryProperties.isEnabled()) {
+            return;
+        }
+        Transaction transaction = applyContext.getTransaction();
+        if (transaction == null) {
+            scheduleExpiry(applyContext.getWriteBatch(), applyContext.getModifiedPlans(), applyContext.getPlans());
         } else {
-            addToPlan(transaction, operationLog, plan);
+            long deadlineMs = getExpiryDeadline();
+            getPlanIds(applyContext.getModifiedPlans(), applyContext.getPlans())
+                    .forEach(planId -> planExpiryDao.scheduleInTransaction(transaction, planId, deadlineMs));
         }
     }
 
-    public boolean isFinished(OperationLog operationLog) {
-        Plan plan = planDao.get(getKey(operationLog));
-        PlanBatch batch = plan.getBatch(operationLog.getBatchId());
-        return batch.isCompleted();
+    /**
+     * Postpones expiry of plans with written segments, once per plan and write.
+     */
+    void scheduleExpiry(WriteBatch writeBatch, Collection<String> keys, Map<String, Plan> plans) {
+        if (!planExpiryProperties.isEnabled()) {
+            return;
+        }
+        long deadlineMs = getExpiryDeadline();
+        getPlanIds(keys, plans).forEach(planId -> planExpiryDao.scheduleInBatch(writeBatch, planId, deadlineMs));
+    }
+
+    long getExpiryDeadline() {
+        return System.currentTimeMillis() + planExpiryProperties.getTtlMs();
     }
 
-    public void deletePlan(String planId) {
-        planDao.delete(getKeyForPlan(planId, OperationType.HOLD));
-        planDao.delete(getKeyForPlan(planId, OperationType.COMMIT));
-        planDao.delete(getKeyForPlan(planId, OperationType.ROLLBACK));
+    private Set<String> getPlanIds(Collection<String> keys, Map<String, Plan> plans) {
+        Set<String> planIds = new HashSet<>();
+        for (String key : keys) {
+            Plan plan = plans.get(key);
+            if (plan != null) {
+                planIds.add(plan.getPlanId());
+            }
+        }
+        return planIds;
     }
 
+    private void savePlan(WriteBatch writeBatch, String key, Plan plan) {
+        if (plan == null) {
+            planDao.deleteInBatch(writeBatch, key);
+        } else {
+            planDao.putInBatch(writeBatch, key, plan);
+        }
+    }
+
+    /**
+     * @return plan combined from progress segments of all its accounts
+     */
     public Plan getPlan(String planId, OperationType operationType) {
-        return planDao.get(getKeyForPlan(planId, operationType));
+        return combineSegments(planId, getSegments(planId, operationType).values());
     }
 
-    private void createPlan(Transaction transaction, OperationLog operationLog) {
-        Set<Long> sequencesArrived = new HashSet<>();
-        sequencesArrived.add(operationLog.getSequenceId());
+    private Plan combineSegments(String planId, Collection<Plan> segments) {
+        if (segments.isEmpty()) {
+            return null;
+        }
+        Plan plan = Plan.builder()
+                .planId(planId)
+                .batches(new HashMap<>())
+                .build();
+        for (Plan segment : segments) {
+            segment.getBatches().forEach((batchId, segmentBatch) -> {
+                PlanBatch batch = plan.getBatch(batchId);
+                if (batch == null) {
+                    batch = plan.addBatch(batchId, new PlanBatch(
+                            new HashSet<>(), segmentBatch.getSequencesTotal(), segmentBatch.getBatchHash(), null
+                    ));
+                }
+                batch.getSequencesArrived().addAll(segmentBatch.getSequencesArrived());
+            });
+        }
+        return plan;
+    }
 
-        planDao.putInTransaction(transaction, getKey(operationLog), Plan.builder()
+    /**
+     * Segments of all operation types of a plan are read by one prefix scan.
+     *
+     * @return segments of all operation types of the plan by their keys
+     */
+    Map<String, Plan> getSegments(String planId) {
+        Map<String, Plan> segments = planDao.getByPrefix(planId + '_');
+        // prefix also matches plans with ids like "planId_..."
+        segments.entrySet().removeIf(segment -> !planId.equals(segment.getValue().getPlanId())
+                                                || !isPlanSegmentKey(segment.getKey(), planId));
+        return segments;
+    }
+
+    Map<String, Plan> getSegments(String planId, OperationType operationType) {
+        return filterSegments(getSegments(planId), planId, operationType);
+    }
+
+    /**
+     * @return present segments of the operation type
+     */
+    Map<String, Plan> filterSegments(Map<String, Plan> segments, String planId, OperationType operationType) {
+        String planKey = getKeyForPlan(planId, operationType);
+        Map<String, Plan> typeSegments = new HashMap<>();
+        segments.forEach((key, segment) -> {
+            if (segment != null && isSegmentKey(key, planKey)) {
+                typeSegments.put(key, segment);
+            }
+        });
+        return typeSegments;
+    }
+
+    /**
+     * @param plans segments of the current write, they take place of stored ones
+     */
+    private Map<String, Plan> getSegments(Map<String, Plan> plans, String planId) {
+        Map<String, Plan> segments = getSegments(planId);
+        plans.forEach((key, segment) -> {
+            if (isPlanSegmentKey(key, planId)) {
+                segments.put(key, segment);
+            }
+        });
+        return segments;
+    }
+
+    private boolean isPlanSegmentKey(String key, String planId) {
+        for (OperationType operationType : OperationType.values()) {
+            if (isSegmentKey(key, getKeyForPlan(planId, operationType))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isSegmentKey(String segmentKey, String planKey) {
+        // prefix also matches segments of plans with ids like "planId_HOLD_...", their suffix isn't account id
+        return segmentKey.equals(planKey) && applyProperties.isLegacyPlanKeys()
+               || segmentKey.startsWith(planKey + '_')
+                  && ACCOUNT_ID.matcher(segmentKey.substring(planKey.length() + 1)).matches();
+    }
+
+    private Plan createPlan(OperationLog operationLog) {
+        // plan stays in memory until commit and may get more batches, so the map must be mutable
+        Plan plan = Plan.builder()
                 .planId(operationLog.getPlanId())
-                .batches(Map.of(
-                        operationLog.getBatchId(),
-                        new PlanBatch(sequencesArrived,
-                                operationLog.getPlanOperationsCount(),
-                                operationLog.getBatchHash()
-                        )
-                ))
-                .build());
+                .batches(new HashMap<>())
+                .build();
+        return addToPlan(operationLog, plan);
     }
 
-    private void addToPlan(Transaction transaction, OperationLog operationLog, Plan plan) {
+    private Plan addToPlan(OperationLog operationLog, Plan plan) {
         PlanBatch batch = plan.getBatch(operationLog.getBatchId());
         if (batch == null) {
-            batch = plan.addBatch(
-                    operationLog.getBatchId(),
-                    new PlanBatch(new HashSet<>(), operationLog.getPlanOperationsCount(), operationLog.getBatchHash())
-            );
+            batch = plan.addBatch(operationLog.getBatchId(), new PlanBatch(
+                    new HashSet<>(), operationLog.getPlanOperationsCount(), operationLog.getBatchHash(),
+                    operationLog.getOperationType() == OperationType.HOLD ? new HashMap<>() : null
+            ));
         }
         batch.addSequence(operationLog.getSequenceId());
-        planDao.putInTransaction(transaction, getKey(operationLog), plan);
+        // batches of holds applied before amounts were kept stay without them
+        if (batch.getSequenceAmounts() != null) {
+            batch.getSequenceAmounts().put(operationLog.getSequenceId(), operationLog.getAmountWithSign());
+        }
+        return plan;
+    }
+
+    /**
+     * Operation logs are partitioned by account, so segment of one account is written only by consumer
+     * of its partition and consumers never lock the same plan row.
+     */
+    String getSegmentKey(OperationLog operationLog) {
+        return getSegmentKey(
+                operationLog.getPlanId(), operationLog.getOperationType(), operationLog.getAccount().getId()
+        );
     }
 
-    private String getKey(OperationLog operationLog) {
-        return String.format("%s_%s", operationLog.getPlanId(), operationLog.getOperationType().toString());
+    private String getSegmentKey(String planId, OperationType operationType, long accountId) {
+        return getKeyForPlan(planId, operationType) + '_' + accountId;
     }
 
     private String getKeyForPlan(String planId, OperationType operationType) {
-        return String.format("%s_%s", planId, operationType);
+        return planId + '_' + operationType;
     }
 }
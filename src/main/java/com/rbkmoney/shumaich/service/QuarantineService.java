@@ -0,0 +1,83 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.shumaich.dao.QuarantineDao;
+import com.rbkmoney.shumaich.domain.QuarantinedRecord;
+import com.rbkmoney.shumaich.exception.DaoException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+import org.springframework.stereotype.Service;
+
+import java.util.Base64;
+import java.util.List;
+
+@Slf4j
+@Service
+public class QuarantineService {
+
+    private final QuarantineDao quarantineDao;
+    private final KafkaOffsetService kafkaOffsetService;
+    private final RocksDB rocksDB;
+    private final Counter quarantinedCounter;
+
+    public QuarantineService(
+            QuarantineDao quarantineDao,
+            KafkaOffsetService kafkaOffsetService,
+            RocksDB rocksDB,
+            MeterRegistry meterRegistry) {
+        this.quarantineDao = quarantineDao;
+        this.kafkaOffsetService = kafkaOffsetService;
+        this.rocksDB = rocksDB;
+        this.quarantinedCounter = meterRegistry.counter("shumaich.apply.quarantined");
+    }
+
+    /**
+     * Saves record and moves offset past it in one write batch, so record is either quarantined or applied later.
+     */
+    public void quarantine(ConsumerRecord<?, ?> record, Exception error) {
+        String recordId = getKey(record);
+        log.error("Record is moved to quarantine, id: {}", recordId, error);
+        try (WriteOptions writeOptions = new WriteOptions().setSync(true);
+                WriteBatch writeBatch = new WriteBatch()) {
+            quarantineDao.putInBatch(writeBatch, recordId, QuarantinedRecord.builder()
+                    .topic(record.topic())
+                    .partition(record.partition())
+                    .offset(record.offset())
+                    .value(valueToString(record.value()))
+                    .error(String.valueOf(error))
+                    .quarantinedAtMs(System.currentTimeMillis())
+                    .build());
+            kafkaOffsetService.saveOffsets(writeBatch, List.of(kafkaOffsetService.getNextOffset(record)));
+            rocksDB.write(writeOptions, writeBatch);
+        } catch (RocksDBException e) {
+            log.error("Can't quarantine record with id: {}", recordId, e);
+            throw new DaoException("Can't quarantine record with id: " + recordId, e);
+        }
+        quarantinedCounter.increment();
+    }
+
+    public QuarantinedRecord getQuarantinedRecord(String topic, int partition, long offset) {
+        return quarantineDao.get(getKey(topic, partition, offset));
+    }
+
+    private String valueToString(Object value) {
+        // raw records are kept encoded, so they can be decoded and replayed later
+        if (value instanceof byte[]) {
+            return Base64.getEncoder().encodeToString((byte[]) value);
+        }
+        return String.valueOf(value);
+    }
+
+    private String getKey(ConsumerRecord<?, ?> record) {
+        return getKey(record.topic(), record.partition(), record.offset());
+    }
+
+    private String getKey(String topic, int partition, long offset) {
+        return String.format("%s-%d_%d", topic, partition, offset);
+    }
+}
@@ -3,6 +3,8 @@ package com.rbkmoney.shumaich.service;
 import com.rbkmoney.damsel.shumaich.*;
 import com.rbkmoney.shumaich.converter.PostingPlanChangeToPostingPlanOperationConverter;
 import com.rbkmoney.shumaich.converter.PostingPlanToPostingPlanOperationConverter;
+import com.rbkmoney.shumaich.domain.Posting;
+import com.rbkmoney.shumaich.domain.PostingBatch;
 import com.rbkmoney.shumaich.domain.PostingPlanOperation;
 import com.rbkmoney.shumaich.utils.VectorClockSerde;
 import lombok.RequiredArgsConstructor;
@@ -10,7 +12,9 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.producer.RecordMetadata;
 import org.springframework.stereotype.Service;
 
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 @Slf4j
 @Service
@@ -22,6 +26,8 @@ public class RequestRegistrationService {
     private final WriterService writerService;
     private final ClockService clockService;
     private final ValidationService validationService;
+    private final PlanExpiryService planExpiryService;
+    private final PartitionOwnershipService partitionOwnershipService;
 
     public Clock registerHold(PostingPlanChange postingPlanChange) {
         validationService.validatePostings(postingPlanChange);
@@ -30,16 +36,36 @@ public class RequestRegistrationService {
         return writeToTopic(postingPlanOperation);
     }
 
+    /**
+     * Hold is validated here only if plans of all its accounts are applied by this instance. Otherwise final
+     * operation is written as is and each account skips it on apply if the hold batch is absent or different.
+     */
     public Clock registerFinalOp(PostingPlan postingPlan, OperationType operationType) {
         validationService.validatePostings(postingPlan);
         PostingPlanOperation postingPlanOperation = finalOpConverter.convert(postingPlan, operationType);
-        ValidationError validationError = validationService.validateFinalOp(postingPlanOperation);
-        if (validationError != null) {
-            log.info("Hold does not exist, maybe it is already cleared");
-            postingPlanOperation.setValidationError(validationError);
-        }
+        boolean holdOwned = partitionOwnershipService.isOwned(getAccountIds(postingPlanOperation));
+        String clock = planExpiryService.writeFinalOperation(postingPlanOperation.getPlanId(), () -> {
+            ValidationError validationError = holdOwned
+                    ? validationService.validateFinalOp(postingPlanOperation)
+                    : null;
+            if (validationError != null) {
+                log.info("Hold does not exist, maybe it is already cleared");
+                postingPlanOperation.setValidationError(validationError);
+            }
+            return writerService.write(postingPlanOperation);
+        });
+        return Clock.vector(VectorClockSerde.serialize(clock));
+    }
 
-        return writeToTopic(postingPlanOperation);
+    private Set<Long> getAccountIds(PostingPlanOperation postingPlanOperation) {
+        Set<Long> accountIds = new HashSet<>();
+        for (PostingBatch postingBatch : postingPlanOperation.getPostingBatches()) {
+            for (Posting posting : postingBatch.getPostings()) {
+                accountIds.add(posting.getFromAccount().getId());
+                accountIds.add(posting.getToAccount().getId());
+            }
+        }
+        return accountIds;
     }
 
     private Clock writeToTopic(PostingPlanOperation postingPlanOperation) {
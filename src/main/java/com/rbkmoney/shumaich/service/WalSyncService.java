@@ -0,0 +1,91 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.shumaich.config.RocksDbProperties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.Transaction;
+import org.rocksdb.WriteBatch;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Syncs WAL in bounded durability mode, where writes reach WAL without fsync. Sync happens after the configured
+ * interval or as soon as the configured amount of bytes was written since the previous one, whichever comes first.
+ * Failed sync never fails the writer: its write is already done, so unsynced bytes are kept for the next attempt.
+ */
+@Slf4j
+@Service
+public class WalSyncService {
+
+    private final RocksDB rocksDB;
+    private final RocksDbProperties rocksDbProperties;
+    private final Timer syncTimer;
+    private final Counter syncFailedCounter;
+    private final AtomicLong unsyncedBytes = new AtomicLong();
+
+    public WalSyncService(RocksDB rocksDB, RocksDbProperties rocksDbProperties, MeterRegistry meterRegistry) {
+        this.rocksDB = rocksDB;
+        this.rocksDbProperties = rocksDbProperties;
+        this.syncTimer = meterRegistry.timer("shumaich.wal.sync");
+        this.syncFailedCounter = meterRegistry.counter("shumaich.wal.sync.failed");
+    }
+
+    public void written(WriteBatch writeBatch) {
+        if (isBounded()) {
+            written(writeBatch.getDataSize());
+        }
+    }
+
+    /**
+     * Transaction batch is cleared by commit, so its size is taken before.
+     */
+    public long getWriteSize(Transaction transaction) {
+        return isBounded() ? transaction.getWriteBatch().getWriteBatch().getDataSize() : 0;
+    }
+
+    /**
+     * Called by writer after its write succeeded, may sync WAL in the writer thread.
+     */
+    public void written(long bytes) {
+        if (!isBounded()) {
+            return;
+        }
+        if (unsyncedBytes.addAndGet(bytes) >= rocksDbProperties.getWalSyncBytes()) {
+            sync();
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${rocksdb.wal-sync-interval-ms}")
+    public void syncWritten() {
+        if (isBounded() && unsyncedBytes.get() > 0) {
+            sync();
+        }
+    }
+
+    private void sync() {
+        // bytes written while syncing are counted for the next sync
+        long syncedBytes = unsyncedBytes.getAndSet(0);
+        long startNanos = System.nanoTime();
+        try {
+            rocksDB.syncWal();
+        } catch (RocksDBException e) {
+            unsyncedBytes.addAndGet(syncedBytes);
+            syncFailedCounter.increment();
+            log.error("Can't sync WAL, unsynced bytes: {}", syncedBytes, e);
+            return;
+        }
+        syncTimer.record(System.nanoTime() - startNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private boolean isBounded() {
+        return rocksDbProperties.getDurability() == RocksDbProperties.Durability.BOUNDED;
+    }
+
+}
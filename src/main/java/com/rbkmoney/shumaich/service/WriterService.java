@@ -1,6 +1,7 @@
 package com.rbkmoney.shumaich.service;
 
 import com.rbkmoney.damsel.shumaich.OperationLog;
+import com.rbkmoney.damsel.shumaich.OperationType;
 import com.rbkmoney.shumaich.converter.PostingPlanOperationToOperationLogListConverter;
 import com.rbkmoney.shumaich.domain.PostingPlanOperation;
 import com.rbkmoney.shumaich.exception.KafkaException;
@@ -8,6 +9,7 @@ import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.producer.RecordMetadata;
 import org.apache.kafka.common.TopicPartition;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.core.KafkaTemplate;
 import org.springframework.kafka.support.SendResult;
 import org.springframework.stereotype.Service;
@@ -19,6 +21,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 
+import static org.apache.commons.lang3.StringUtils.isBlank;
+
 @Slf4j
 @Service
 @RequiredArgsConstructor
@@ -26,12 +30,14 @@ public class WriterService {
 
     private final PostingPlanOperationToOperationLogListConverter converter;
     private final KafkaTemplate<Long, OperationLog> kafkaTemplate;
+    @Value("${kafka.topics.final-operation-log-name}")
+    private String finalOperationLogTopicName;
 
     public List<RecordMetadata> write(PostingPlanOperation postingPlanOperation) {
         List<OperationLog> operationLogs = converter.convert(postingPlanOperation);
         List<ListenableFuture<SendResult<Long, OperationLog>>> futures = new ArrayList<>();
         for (OperationLog operationLog : operationLogs) {
-            futures.add(kafkaTemplate.sendDefault(operationLog.getAccount().getId(), operationLog));
+            futures.add(kafkaTemplate.send(getTopic(operationLog), operationLog.getAccount().getId(), operationLog));
         }
         try {
             Map<TopicPartition, RecordMetadata> recordMetadataMap = new HashMap<>();
@@ -54,4 +60,15 @@ public class WriterService {
         }
     }
 
+    /**
+     * Commits and rollbacks may go to a separate lane, so they are not queued behind holds. Final operation
+     * is accepted only after its hold is applied, so lanes don't need ordering between them.
+     */
+    private String getTopic(OperationLog operationLog) {
+        if (operationLog.getOperationType() == OperationType.HOLD || isBlank(finalOperationLogTopicName)) {
+            return kafkaTemplate.getDefaultTopic();
+        }
+        return finalOperationLogTopicName;
+    }
+
 }
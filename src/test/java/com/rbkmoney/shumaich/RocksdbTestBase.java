@@ -2,6 +2,7 @@ package com.rbkmoney.shumaich;
 
 
 import com.rbkmoney.shumaich.config.RocksDbConfiguration;
+import com.rbkmoney.shumaich.config.RocksDbProperties;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.ClassRule;
@@ -15,7 +16,9 @@ import org.springframework.test.context.junit4.SpringRunner;
 
 @Slf4j
 @RunWith(SpringRunner.class)
-@ContextConfiguration(initializers = RocksdbTestBase.Initializer.class, classes = RocksDbConfiguration.class)
+@ContextConfiguration(initializers = RocksdbTestBase.Initializer.class, classes = {
+        RocksDbConfiguration.class, RocksDbProperties.class
+})
 public abstract class RocksdbTestBase {
 
     @ClassRule
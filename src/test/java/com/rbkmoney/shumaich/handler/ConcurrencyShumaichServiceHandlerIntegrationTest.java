@@ -17,7 +17,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
-import org.rocksdb.TransactionDB;
+import org.rocksdb.RocksDB;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.retry.backoff.FixedBackOffPolicy;
@@ -72,7 +72,7 @@ public class ConcurrencyShumaichServiceHandlerIntegrationTest extends Integratio
     PlanDao planDao;
 
     @Autowired
-    TransactionDB rocksDB;
+    RocksDB rocksDB;
 
     RetryTemplate retryTemplate = getRetryTemplate();
     private ExecutorService executorService;
@@ -17,7 +17,7 @@ import org.apache.thrift.TException;
 import org.junit.Before;
 import org.junit.Test;
 import org.rocksdb.RocksDBException;
-import org.rocksdb.TransactionDB;
+import org.rocksdb.RocksDB;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.boot.test.mock.mockito.SpyBean;
@@ -26,6 +26,7 @@ import org.springframework.retry.support.RetryTemplate;
 import org.springframework.test.annotation.DirtiesContext;
 
 import java.net.URI;
+import java.util.List;
 import java.util.Map;
 
 import static com.rbkmoney.shumaich.helpers.TestData.*;
@@ -56,7 +57,7 @@ public class ShumaichServiceHandlerIntegrationTest extends IntegrationTestBase {
     PlanDao planDao;
 
     @Autowired
-    TransactionDB rocksDB;
+    RocksDB rocksDB;
 
     @SpyBean
     BalanceService balanceService;
@@ -66,15 +67,9 @@ public class ShumaichServiceHandlerIntegrationTest extends IntegrationTestBase {
 
     @Before
     public void clearDbData() throws RocksDBException {
-        rocksDB.delete(planDao.getColumnFamilyHandle(), (PLAN_ID + "_HOLD").getBytes());
-        rocksDB.delete(planDao.getColumnFamilyHandle(), "plan1_HOLD".getBytes());
-        rocksDB.delete(planDao.getColumnFamilyHandle(), "plan2_HOLD".getBytes());
-        rocksDB.delete(planDao.getColumnFamilyHandle(), (PLAN_ID + "_COMMIT").getBytes());
-        rocksDB.delete(planDao.getColumnFamilyHandle(), "plan1_COMMIT".getBytes());
-        rocksDB.delete(planDao.getColumnFamilyHandle(), "plan2_COMMIT".getBytes());
-        rocksDB.delete(planDao.getColumnFamilyHandle(), (PLAN_ID + "_ROLLBACK").getBytes());
-        rocksDB.delete(planDao.getColumnFamilyHandle(), "plan1_ROLLBACK".getBytes());
-        rocksDB.delete(planDao.getColumnFamilyHandle(), "plan2_ROLLBACK".getBytes());
+        for (String planId : List.of(PLAN_ID, "plan1", "plan2")) {
+            planDao.delete(planDao.getByPrefix(planId + "_").keySet());
+        }
         rocksDB.delete(balanceDao.getColumnFamilyHandle(), Longs.toByteArray(MERCHANT_ACC));
         rocksDB.delete(balanceDao.getColumnFamilyHandle(), Longs.toByteArray(SYSTEM_ACC));
         rocksDB.delete(balanceDao.getColumnFamilyHandle(), Longs.toByteArray(PROVIDER_ACC));
@@ -89,9 +84,9 @@ public class ShumaichServiceHandlerIntegrationTest extends IntegrationTestBase {
             Balance balance = balanceDao.get(MERCHANT_ACC);
 
             assertNotNull(balance);
-            assertEquals(0, balance.getAmount().intValue());
-            assertEquals(-3, balance.getMinAmount().intValue());
-            assertEquals(100, balance.getMaxAmount().intValue());
+            assertEquals(0, balance.getAmount());
+            assertEquals(-3, balance.getMinAmount());
+            assertEquals(100, balance.getMaxAmount());
         });
 
     }
@@ -112,9 +107,9 @@ public class ShumaichServiceHandlerIntegrationTest extends IntegrationTestBase {
         await().untilAsserted(() -> {
             Balance balance = balanceDao.get(MERCHANT_ACC);
             assertNotNull(balance);
-            assertEquals(0, balance.getAmount().intValue());
-            assertEquals(-6, balance.getMinAmount().intValue());
-            assertEquals(200, balance.getMaxAmount().intValue());
+            assertEquals(0, balance.getAmount());
+            assertEquals(-6, balance.getMinAmount());
+            assertEquals(200, balance.getMaxAmount());
         });
     }
 
@@ -135,9 +130,9 @@ public class ShumaichServiceHandlerIntegrationTest extends IntegrationTestBase {
             Balance balance = balanceDao.get(MERCHANT_ACC);
 
             assertNotNull(balance);
-            assertEquals(0, balance.getAmount().intValue());
-            assertEquals(-6, balance.getMinAmount().intValue());
-            assertEquals(200, balance.getMaxAmount().intValue());
+            assertEquals(0, balance.getAmount());
+            assertEquals(-6, balance.getMinAmount());
+            assertEquals(200, balance.getMaxAmount());
         });
     }
 
@@ -201,9 +196,9 @@ public class ShumaichServiceHandlerIntegrationTest extends IntegrationTestBase {
             Balance balance = balanceDao.get(MERCHANT_ACC);
 
             assertNotNull(balance);
-            assertEquals(97, balance.getAmount().intValue());
-            assertEquals(97, balance.getMinAmount().intValue());
-            assertEquals(97, balance.getMaxAmount().intValue());
+            assertEquals(97, balance.getAmount());
+            assertEquals(97, balance.getMinAmount());
+            assertEquals(97, balance.getMaxAmount());
         });
     }
 
@@ -217,9 +212,9 @@ public class ShumaichServiceHandlerIntegrationTest extends IntegrationTestBase {
         await().untilAsserted(() -> {
             Balance balance = balanceDao.get(MERCHANT_ACC);
             assertNotNull(balance);
-            assertEquals(97, balance.getAmount().intValue());
-            assertEquals(97, balance.getMinAmount().intValue());
-            assertEquals(97, balance.getMaxAmount().intValue());
+            assertEquals(97, balance.getAmount());
+            assertEquals(97, balance.getMinAmount());
+            assertEquals(97, balance.getMaxAmount());
         });
 
         handler.commitPlan(TestData.postingPlan(), holdClock);
@@ -241,9 +236,9 @@ public class ShumaichServiceHandlerIntegrationTest extends IntegrationTestBase {
             Balance balance = balanceDao.get(MERCHANT_ACC);
 
             assertNotNull(balance);
-            assertEquals(0, balance.getAmount().intValue());
-            assertEquals(0, balance.getMinAmount().intValue());
-            assertEquals(0, balance.getMaxAmount().intValue());
+            assertEquals(0, balance.getAmount());
+            assertEquals(0, balance.getMinAmount());
+            assertEquals(0, balance.getMaxAmount());
         });
     }
 
@@ -258,9 +253,9 @@ public class ShumaichServiceHandlerIntegrationTest extends IntegrationTestBase {
             Balance balance = balanceDao.get(MERCHANT_ACC);
 
             assertNotNull(balance);
-            assertEquals(0, balance.getAmount().intValue());
-            assertEquals(0, balance.getMinAmount().intValue());
-            assertEquals(0, balance.getMaxAmount().intValue());
+            assertEquals(0, balance.getAmount());
+            assertEquals(0, balance.getMinAmount());
+            assertEquals(0, balance.getMaxAmount());
         });
 
         handler.rollbackPlan(TestData.postingPlan(), holdClock);
@@ -60,6 +60,24 @@ public class TestData {
                 .build();
     }
 
+    public static OperationLog operationLog(String planId,
+                                            Long sequenceId,
+                                            Long accountId,
+                                            Long amountWithSign,
+                                            OperationType operationType) {
+        return new OperationLog()
+                .setPlanId(planId)
+                .setBatchId(1L)
+                .setOperationType(operationType)
+                .setAccount(new Account(accountId, "RUB"))
+                .setAmountWithSign(amountWithSign)
+                .setCurrencySymbolicCode("RUB")
+                .setSequenceId(sequenceId)
+                .setPlanOperationsCount(2L)
+                .setBatchHash(1L)
+                .setCreationTimeMs(System.currentTimeMillis());
+    }
+
     public static TopicPartition topicPartition(int partition) {
         return new TopicPartition(TEST_TOPIC, partition);
     }
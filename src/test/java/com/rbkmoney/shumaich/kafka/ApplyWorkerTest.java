@@ -0,0 +1,180 @@
+package com.rbkmoney.shumaich.kafka;
+
+import com.rbkmoney.shumaich.config.ApplyProperties;
+import com.rbkmoney.shumaich.domain.KafkaOffset;
+import com.rbkmoney.shumaich.kafka.handler.Handler;
+import com.rbkmoney.shumaich.service.KafkaOffsetService;
+import com.rbkmoney.shumaich.service.QuarantineService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ApplyWorkerTest {
+
+    private static final TopicPartition FIRST_PARTITION = new TopicPartition("topic", 0);
+    private static final TopicPartition SECOND_PARTITION = new TopicPartition("topic", 1);
+    private static final TopicPartition PRIORITY_PARTITION = new TopicPartition("priority_topic", 0);
+
+    @Test
+    public void oversizedPollAppliedInBatchesKeepingOrder() {
+        ApplyFlowControl applyFlowControl = mock(ApplyFlowControl.class);
+        when(applyFlowControl.isEnabled()).thenReturn(true);
+        when(applyFlowControl.initialBatchLimit()).thenReturn(3);
+        when(applyFlowControl.nextBatchLimit(anyInt(), anyInt(), anyLong()))
+                .thenAnswer(invocation -> invocation.getArgument(0));
+
+        Handler<String, String> handler = mock(Handler.class);
+        when(handler.savesOffsets()).thenReturn(true);
+        List<ConsumerRecords<String, String>> batches = new ArrayList<>();
+        doAnswer(invocation -> batches.add(invocation.getArgument(0))).when(handler).handle(any());
+
+        new ApplyWorker<>(handler, mock(KafkaOffsetService.class), applyFlowControl, mock(ApplyRetry.class), 1)
+                .apply(new ConsumerRecords<>(Map.of(
+                        FIRST_PARTITION, records(FIRST_PARTITION, 4),
+                        SECOND_PARTITION, records(SECOND_PARTITION, 3)
+                )));
+
+        assertEquals(List.of(3, 3, 1), batches.stream().map(ConsumerRecords::count).collect(Collectors.toList()));
+        assertEquals(List.of(0L, 1L, 2L, 3L), offsets(batches, FIRST_PARTITION));
+        assertEquals(List.of(0L, 1L, 2L), offsets(batches, SECOND_PARTITION));
+    }
+
+    @Test
+    public void failedBatchRetriedFromFailedRecord() {
+        KafkaOffsetService kafkaOffsetService = mock(KafkaOffsetService.class);
+        when(kafkaOffsetService.loadOffsets(List.of(FIRST_PARTITION)))
+                .thenReturn(List.of(new KafkaOffset(FIRST_PARTITION, 1L)));
+
+        Handler<String, String> handler = mock(Handler.class);
+        when(handler.savesOffsets()).thenReturn(true);
+        List<ConsumerRecords<String, String>> batches = new ArrayList<>();
+        doThrow(RuntimeException.class)
+                .doAnswer(invocation -> batches.add(invocation.getArgument(0)))
+                .when(handler).handle(any());
+
+        new ApplyWorker<>(handler, kafkaOffsetService, disabledFlowControl(),
+                applyRetry(false, mock(QuarantineService.class)), 1)
+                .apply(new ConsumerRecords<>(Map.of(FIRST_PARTITION, records(FIRST_PARTITION, 3))));
+
+        assertEquals(List.of(1, 1), batches.stream().map(ConsumerRecords::count).collect(Collectors.toList()));
+        assertEquals(List.of(1L, 2L), offsets(batches, FIRST_PARTITION));
+    }
+
+    @Test
+    public void persistentlyFailingRecordQuarantined() {
+        Handler<String, String> handler = mock(Handler.class);
+        when(handler.savesOffsets()).thenReturn(true);
+        List<ConsumerRecords<String, String>> batches = new ArrayList<>();
+        doAnswer(invocation -> {
+            ConsumerRecords<String, String> batch = invocation.getArgument(0);
+            if (offsets(List.of(batch), FIRST_PARTITION).contains(1L)) {
+                throw new IllegalStateException("Broken record");
+            }
+            return batches.add(batch);
+        }).when(handler).handle(any());
+        QuarantineService quarantineService = mock(QuarantineService.class);
+
+        new ApplyWorker<>(handler, mock(KafkaOffsetService.class), disabledFlowControl(),
+                applyRetry(true, quarantineService), 1)
+                .apply(new ConsumerRecords<>(Map.of(FIRST_PARTITION, records(FIRST_PARTITION, 3))));
+
+        assertEquals(List.of(0L, 2L), offsets(batches, FIRST_PARTITION));
+        verify(quarantineService).quarantine(argThat(record -> record.offset() == 1L), any());
+    }
+
+    @Test
+    public void priorityBatchAppliedBeforeQueuedOnes() throws InterruptedException {
+        Handler<String, String> handler = mock(Handler.class);
+        when(handler.savesOffsets()).thenReturn(true);
+        List<ConsumerRecords<String, String>> batches = new CopyOnWriteArrayList<>();
+        doAnswer(invocation -> batches.add(invocation.getArgument(0))).when(handler).handle(any());
+        ApplyWorker<String, String> applyWorker = new ApplyWorker<>(handler, mock(KafkaOffsetService.class),
+                disabledFlowControl(), mock(ApplyRetry.class), 1);
+
+        applyWorker.offer(new ConsumerRecords<>(Map.of(FIRST_PARTITION, records(FIRST_PARTITION, 2))));
+        applyWorker.offerPriority(new ConsumerRecords<>(Map.of(PRIORITY_PARTITION, records(PRIORITY_PARTITION, 1))));
+        Thread workerThread = new Thread(applyWorker);
+        workerThread.start();
+        await().until(() -> batches.size() == 2);
+        applyWorker.stop();
+        workerThread.join();
+
+        assertEquals(Set.of(PRIORITY_PARTITION), batches.get(0).partitions());
+        assertEquals(Set.of(FIRST_PARTITION), batches.get(1).partitions());
+    }
+
+    @Test
+    public void batchLimitFollowsLatency() {
+        ApplyProperties applyProperties = new ApplyProperties();
+        applyProperties.getFlowControl().setTargetLatencyMs(100);
+        applyProperties.getFlowControl().setMinBatchSize(10);
+        applyProperties.getFlowControl().setMaxBatchSize(500);
+        ApplyFlowControl applyFlowControl = new ApplyFlowControl(applyProperties, null);
+
+        assertEquals(500, applyFlowControl.initialBatchLimit());
+        assertEquals(250, applyFlowControl.nextBatchLimit(500, 500, 150));
+        assertEquals(10, applyFlowControl.nextBatchLimit(15, 15, 150));
+        assertEquals(125, applyFlowControl.nextBatchLimit(100, 100, 20));
+        assertEquals(500, applyFlowControl.nextBatchLimit(450, 450, 20));
+        assertEquals(100, applyFlowControl.nextBatchLimit(100, 40, 20));
+        assertEquals(100, applyFlowControl.nextBatchLimit(100, 100, 70));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void quarantineRefusedInMemoryMode() {
+        ApplyProperties applyProperties = new ApplyProperties();
+        applyProperties.setMode(ApplyProperties.Mode.IN_MEMORY);
+        applyProperties.getRetry().setQuarantine(true);
+
+        new ApplyRetry(applyProperties, mock(QuarantineService.class), new SimpleMeterRegistry());
+    }
+
+    private ApplyFlowControl disabledFlowControl() {
+        return new ApplyFlowControl(new ApplyProperties(), null);
+    }
+
+    private ApplyRetry applyRetry(boolean quarantine, QuarantineService quarantineService) {
+        ApplyProperties applyProperties = new ApplyProperties();
+        applyProperties.getRetry().setMaxAttempts(2);
+        applyProperties.getRetry().setInitialBackoffMs(1);
+        applyProperties.getRetry().setQuarantine(quarantine);
+        return new ApplyRetry(applyProperties, quarantineService, new SimpleMeterRegistry());
+    }
+
+    private List<ConsumerRecord<String, String>> records(TopicPartition topicPartition, int count) {
+        return LongStream.range(0, count)
+                .mapToObj(offset -> new ConsumerRecord<>(
+                        topicPartition.topic(), topicPartition.partition(), offset, "key", "value"
+                ))
+                .collect(Collectors.toList());
+    }
+
+    private List<Long> offsets(List<ConsumerRecords<String, String>> batches, TopicPartition topicPartition) {
+        return batches.stream()
+                .flatMap(batch -> batch.records(topicPartition).stream())
+                .map(ConsumerRecord::offset)
+                .collect(Collectors.toList());
+    }
+}
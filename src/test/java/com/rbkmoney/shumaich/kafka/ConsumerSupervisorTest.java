@@ -0,0 +1,65 @@
+package com.rbkmoney.shumaich.kafka;
+
+import com.rbkmoney.shumaich.config.RestartProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class ConsumerSupervisorTest {
+
+    private static final TopicPartition PARTITION = new TopicPartition("topic", 0);
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ConsumerSupervisor consumerSupervisor = new ConsumerSupervisor(restartProperties(), meterRegistry);
+
+    @After
+    public void tearDown() {
+        consumerSupervisor.shutdownRestartScheduler();
+    }
+
+    @Test
+    public void backoffGrowsUpToMaximum() {
+        assertEquals(10, consumerSupervisor.getBackoffMs(1));
+        assertEquals(20, consumerSupervisor.getBackoffMs(2));
+        assertEquals(80, consumerSupervisor.getBackoffMs(4));
+        assertEquals(100, consumerSupervisor.getBackoffMs(5));
+        assertEquals(100, consumerSupervisor.getBackoffMs(100));
+    }
+
+    @Test
+    public void failedConsumerRestartedAndMeasured() {
+        SimpleTopicConsumer<?, ?> consumer = mock(SimpleTopicConsumer.class);
+        when(consumer.getRestarts()).thenReturn(new ConsumerSupervisor.Restarts());
+        when(consumer.getAssignedPartitions()).thenReturn(List.of(PARTITION));
+
+        consumerSupervisor.onFailure(consumer);
+        verify(consumer, timeout(1_000)).restart();
+        consumerSupervisor.onRecovered(consumer);
+
+        assertEquals(1.0, meterRegistry.get("shumaich.consumer.restarts")
+                .tag("partition", "0")
+                .counter()
+                .count(), 0.0);
+        assertEquals(1L, meterRegistry.get("shumaich.consumer.recovery")
+                .tag("partition", "0")
+                .timer()
+                .count());
+    }
+
+    private RestartProperties restartProperties() {
+        RestartProperties restartProperties = new RestartProperties();
+        restartProperties.setInitialBackoffMs(10);
+        restartProperties.setMaxBackoffMs(100);
+        return restartProperties;
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.rbkmoney.shumaich.kafka;
+
+import com.rbkmoney.shumaich.config.RebalanceProperties;
+import com.rbkmoney.shumaich.service.KafkaOffsetService;
+import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.ListOffsetsResult;
+import org.apache.kafka.common.KafkaFuture;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PartitionRebalancerTest {
+
+    private static final TopicPartition P0 = new TopicPartition("topic", 0);
+    private static final TopicPartition P1 = new TopicPartition("topic", 1);
+    private static final TopicPartition P2 = new TopicPartition("topic", 2);
+    private static final TopicPartition P3 = new TopicPartition("topic", 3);
+
+    private final AdminClient kafkaAdminClient = mock(AdminClient.class);
+    private final RebalanceProperties rebalanceProperties = new RebalanceProperties();
+    private PartitionRebalancer partitionRebalancer;
+
+    @Before
+    public void setUp() {
+        KafkaOffsetService kafkaOffsetService = mock(KafkaOffsetService.class);
+        when(kafkaOffsetService.loadOffsets(any())).thenReturn(List.of());
+        rebalanceProperties.setMinConsumers(2);
+        partitionRebalancer = new PartitionRebalancer(kafkaAdminClient, kafkaOffsetService, rebalanceProperties);
+    }
+
+    @Test
+    public void skewedPartitionsAreSpread() {
+        mockEndOffsets(Map.of(P0, 5000L, P1, 5000L, P2, 0L, P3, 0L));
+
+        Optional<List<List<TopicPartition>>> assignment = partitionRebalancer.rebalance(List.of(
+                List.of(P0, P1), List.of(P2, P3)
+        ));
+
+        assertTrue(assignment.isPresent());
+        assertEquals(List.of(List.of(P0, P2), List.of(P1, P3)), assignment.get());
+    }
+
+    @Test
+    public void balancedAssignmentIsKept() {
+        mockEndOffsets(Map.of(P0, 5000L, P1, 5000L, P2, 0L, P3, 0L));
+
+        assertEquals(Optional.empty(), partitionRebalancer.rebalance(List.of(List.of(P0, P2), List.of(P1, P3))));
+    }
+
+    @Test
+    public void consumersAmountFollowsLoad() {
+        rebalanceProperties.setMaxConsumers(3);
+        mockEndOffsets(Map.of(P0, 30_000L, P1, 30_000L, P2, 30_000L, P3, 30_000L));
+
+        Optional<List<List<TopicPartition>>> assignment = partitionRebalancer.rebalance(List.of(
+                List.of(P0, P2), List.of(P1, P3)
+        ));
+
+        assertTrue(assignment.isPresent());
+        assertEquals(3, assignment.get().size());
+    }
+
+    private void mockEndOffsets(Map<TopicPartition, Long> endOffsets) {
+        when(kafkaAdminClient.listOffsets(anyMap())).thenReturn(new ListOffsetsResult(
+                endOffsets.entrySet().stream().collect(Collectors.toMap(
+                        Map.Entry::getKey,
+                        entry -> KafkaFuture.completedFuture(
+                                new ListOffsetsResult.ListOffsetsResultInfo(entry.getValue(), 0L, Optional.empty())
+                        )
+                ))
+        ));
+    }
+}
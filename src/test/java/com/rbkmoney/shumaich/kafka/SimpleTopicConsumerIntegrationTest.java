@@ -6,6 +6,7 @@ import com.rbkmoney.shumaich.kafka.handler.Handler;
 import com.rbkmoney.shumaich.service.KafkaOffsetService;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.admin.AdminClient;
+import org.apache.kafka.clients.admin.NewPartitions;
 import org.apache.kafka.clients.admin.TopicDescription;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.producer.ProducerConfig;
@@ -132,6 +133,22 @@ public class SimpleTopicConsumerIntegrationTest extends IntegrationTestBase {
         });
     }
 
+    @Test
+    public void errorInMessageProcessingRestartsConsumer() throws InterruptedException, ExecutionException {
+        int testPartition = 4;
+
+        Mockito.doThrow(Error.class)
+                .doNothing()
+                .when(testLogHandler).handle(any());
+
+        sendTestLogToPartition(testPartition);
+
+        await().untilAsserted(() -> {
+            Mockito.verify(testLogHandler, Mockito.atLeast(2)).handle(any());
+            checkOffsets(testPartition, 1L, TEST_TOPIC);
+        });
+    }
+
     @Test
     public void handledMessageWithExceptionWhenSavingToDatabase() throws ExecutionException, InterruptedException {
         int testPartition = 3;
@@ -149,6 +166,19 @@ public class SimpleTopicConsumerIntegrationTest extends IntegrationTestBase {
         });
     }
 
+    @Test
+    public void newPartitionsConsumedWithoutRestart() throws ExecutionException, InterruptedException {
+        int testPartition = getTopicPartitions(TEST_TOPIC).size();
+        kafkaAdminClient.createPartitions(Map.of(TEST_TOPIC, NewPartitions.increaseTo(testPartition + 1)))
+                .all()
+                .get();
+
+        testLogTopicConsumptionManager.refreshPartitions();
+        sendTestLogToPartition(testPartition);
+
+        await().untilAsserted(() -> checkOffsets(testPartition, 1L, TEST_TOPIC));
+    }
+
     private void sendTestLogToPartition(int testPartition) {
         testLogKafkaTemplate.sendDefault(testPartition, "test", "test");
     }
@@ -161,6 +191,10 @@ public class SimpleTopicConsumerIntegrationTest extends IntegrationTestBase {
         private Integer partitionsPerThread;
         @Value("${kafka.topics.polling-timeout}")
         private Long pollingTimeout;
+        @Value("${kafka.topics.prefetch-batches}")
+        private Integer prefetchBatches;
+        @Value("${kafka.topics.partition-workers}")
+        private boolean partitionWorkers;
 
         @Bean
         @Primary
@@ -185,7 +219,11 @@ public class SimpleTopicConsumerIntegrationTest extends IntegrationTestBase {
         public TopicConsumptionManager<String, String> testLogTopicConsumptionManager(
                 AdminClient kafkaAdminClient,
                 KafkaOffsetService kafkaOffsetService,
-                Handler<String, String> handler) throws ExecutionException, InterruptedException {
+                Handler<String, String> handler,
+                ApplyFlowControl applyFlowControl,
+                ApplyRetry applyRetry,
+                PartitionRebalancer partitionRebalancer,
+                ConsumerSupervisor consumerSupervisor) throws ExecutionException, InterruptedException {
             Map<String, Object> consumerProps = new HashMap<>();
             consumerProps.put(ConsumerConfig.BOOTSTRAP_SERVERS_CONFIG, kafka.getEmbeddedKafka().getBrokersAsString());
             consumerProps.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, EARLIEST);
@@ -205,7 +243,14 @@ public class SimpleTopicConsumerIntegrationTest extends IntegrationTestBase {
                     consumerProps,
                     kafkaOffsetService,
                     handler,
-                    pollingTimeout
+                    applyFlowControl,
+                    applyRetry,
+                    pollingTimeout,
+                    prefetchBatches,
+                    partitionWorkers,
+                    partitionRebalancer,
+                    kafkaAdminClient,
+                    consumerSupervisor
             );
         }
 
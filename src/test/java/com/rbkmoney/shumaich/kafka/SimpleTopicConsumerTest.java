@@ -0,0 +1,75 @@
+package com.rbkmoney.shumaich.kafka;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class SimpleTopicConsumerTest {
+
+    private static final String TOPIC = "operation_log";
+    private static final String LANE_TOPIC = "final_operation_log";
+
+    @Test
+    public void finalOperationsLaneGoesFirst() {
+        TopicPartition holdPartition = new TopicPartition(TOPIC, 0);
+        TopicPartition lanePartition = new TopicPartition(LANE_TOPIC, 0);
+        TopicPartition otherLanePartition = new TopicPartition(LANE_TOPIC, 1);
+        ConsumerRecords<Long, String> records = new ConsumerRecords<>(Map.of(
+                holdPartition, List.of(record(holdPartition, 0), record(holdPartition, 1)),
+                lanePartition, List.of(record(lanePartition, 0)),
+                otherLanePartition, List.of(record(otherLanePartition, 0))
+        ));
+
+        List<ConsumerRecords<Long, String>> lanes = consumer(LANE_TOPIC).getLanes(records);
+
+        assertEquals(2, lanes.size());
+        assertEquals(Set.of(lanePartition, otherLanePartition), lanes.get(0).partitions());
+        assertEquals(2, lanes.get(0).count());
+        assertEquals(Set.of(holdPartition), lanes.get(1).partitions());
+        assertEquals(2, lanes.get(1).count());
+    }
+
+    @Test
+    public void emptyLaneSkipped() {
+        TopicPartition holdPartition = new TopicPartition(TOPIC, 0);
+        ConsumerRecords<Long, String> records = new ConsumerRecords<>(Map.of(
+                holdPartition, List.of(record(holdPartition, 0))
+        ));
+
+        List<ConsumerRecords<Long, String>> lanes = consumer(LANE_TOPIC).getLanes(records);
+
+        assertEquals(1, lanes.size());
+        assertEquals(Set.of(holdPartition), lanes.get(0).partitions());
+    }
+
+    @Test
+    public void recordsKeptWholeWithoutLane() {
+        TopicPartition holdPartition = new TopicPartition(TOPIC, 0);
+        ConsumerRecords<Long, String> records = new ConsumerRecords<>(Map.of(
+                holdPartition, List.of(record(holdPartition, 0))
+        ));
+
+        List<ConsumerRecords<Long, String>> lanes = consumer(null).getLanes(records);
+
+        assertEquals(List.of(records), lanes);
+    }
+
+    private static SimpleTopicConsumer<Long, String> consumer(String priorityTopicName) {
+        return new SimpleTopicConsumer<>(
+                Map.of(), List.of(new TopicPartition(TOPIC, 0)), null, null, null, null, 100L, 0, false,
+                priorityTopicName, null, null
+        );
+    }
+
+    private static ConsumerRecord<Long, String> record(TopicPartition topicPartition, long offset) {
+        return new ConsumerRecord<>(topicPartition.topic(), topicPartition.partition(), offset, 1L, "value");
+    }
+
+}
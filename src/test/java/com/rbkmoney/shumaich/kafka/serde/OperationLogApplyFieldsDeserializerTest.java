@@ -0,0 +1,39 @@
+package com.rbkmoney.shumaich.kafka.serde;
+
+import com.rbkmoney.damsel.shumaich.OperationLog;
+import com.rbkmoney.damsel.shumaich.OperationType;
+import com.rbkmoney.damsel.shumaich.ValidationError;
+import com.rbkmoney.shumaich.helpers.TestData;
+import org.apache.thrift.TSerializer;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class OperationLogApplyFieldsDeserializerTest {
+
+    @Test
+    public void applyFieldsDecodedAndRestSkipped() throws Exception {
+        OperationLog operationLog = TestData.operationLog("plan", 3L, 1L, -100L, OperationType.COMMIT)
+                .setValidationError(ValidationError.HOLD_NOT_EXIST)
+                .setDescription("description")
+                .setTraceId("trace");
+
+        OperationLog deserialized = new OperationLogApplyFieldsDeserializer()
+                .deserialize(new TSerializer().serialize(operationLog));
+
+        assertEquals("plan", deserialized.getPlanId());
+        assertEquals(1L, deserialized.getBatchId());
+        assertEquals(OperationType.COMMIT, deserialized.getOperationType());
+        assertEquals(operationLog.getAccount(), deserialized.getAccount());
+        assertEquals(-100L, deserialized.getAmountWithSign());
+        assertEquals(3L, deserialized.getSequenceId());
+        assertEquals(2L, deserialized.getPlanOperationsCount());
+        assertEquals(1L, deserialized.getBatchHash());
+        assertEquals(ValidationError.HOLD_NOT_EXIST, deserialized.getValidationError());
+        assertNull(deserialized.getDescription());
+        assertNull(deserialized.getCurrencySymbolicCode());
+        assertNull(deserialized.getTraceId());
+    }
+
+}
@@ -0,0 +1,78 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.damsel.shumaich.OperationType;
+import com.rbkmoney.shumaich.config.ApplyProperties;
+import com.rbkmoney.shumaich.domain.Balance;
+import com.rbkmoney.shumaich.domain.KafkaOffset;
+import com.rbkmoney.shumaich.helpers.TestData;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.test.context.ContextConfiguration;
+
+import java.util.List;
+
+import static com.rbkmoney.shumaich.helpers.TestData.MERCHANT_ACC;
+import static com.rbkmoney.shumaich.helpers.TestData.OPERATION_LOG_TOPIC;
+
+/**
+ * Runs the same cases with balance cache, every batch after the first one reads balances from it.
+ */
+@ContextConfiguration(classes = BalanceServiceCachedTest.Config.class)
+public class BalanceServiceCachedTest extends BalanceServiceTest {
+
+    public static class Config {
+
+        @Bean
+        @Primary
+        ApplyProperties cachedApplyProperties() {
+            ApplyProperties applyProperties = new ApplyProperties();
+            applyProperties.getBalanceCache().setEnabled(true);
+            return applyProperties;
+        }
+    }
+
+    @Test
+    public void nextBatchReadsCommittedBalanceFromCache() throws RocksDBException {
+        balanceService.proceedBatch(holds(), List.of(TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 2L)));
+        storeBalance(new Balance(MERCHANT_ACC, "RUB", 0L, 0L, 1000L));
+
+        balanceService.proceedBatch(commits(), List.of(TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 4L)));
+
+        checkBalance(MERCHANT_ACC, 100L, 100L, 100L);
+    }
+
+    @Test
+    public void failedCommitInvalidatesCachedBalances() throws RocksDBException {
+        balanceService.proceedBatch(holds(), List.of(TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 2L)));
+        try {
+            balanceService.proceedBatch(
+                    List.of(TestData.operationLog("otherPlan", 0L, MERCHANT_ACC, 50L, OperationType.HOLD)),
+                    // offset without partition fails the transaction after balances are written into it
+                    List.of(new KafkaOffset(null, 3L))
+            );
+            Assert.fail();
+        } catch (NullPointerException e) {
+            // expected
+        }
+        storeBalance(new Balance(MERCHANT_ACC, "RUB", 0L, 0L, 1000L));
+
+        balanceService.proceedBatch(commits(), List.of(TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 4L)));
+
+        checkBalance(MERCHANT_ACC, 100L, 100L, 1000L);
+    }
+
+    /**
+     * Writes balance past the service, so it's seen only by reads which go to RocksDB.
+     */
+    private void storeBalance(Balance balance) throws RocksDBException {
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            balanceDao.putInBatch(writeBatch, balance);
+            rocksDB.write(writeOptions, writeBatch);
+        }
+    }
+
+}
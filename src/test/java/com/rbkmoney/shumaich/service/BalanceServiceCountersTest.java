@@ -0,0 +1,25 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.shumaich.config.RocksDbProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.test.context.ContextConfiguration;
+
+/**
+ * Runs the same cases with balances stored as merge counters, negative amounts check signed wrap of uint64add.
+ */
+@ContextConfiguration(classes = BalanceServiceCountersTest.Config.class)
+public class BalanceServiceCountersTest extends BalanceServiceTest {
+
+    public static class Config {
+
+        @Bean
+        @Primary
+        RocksDbProperties countersRocksDbProperties() {
+            RocksDbProperties rocksDbProperties = new RocksDbProperties();
+            rocksDbProperties.setBalanceLayout(RocksDbProperties.BalanceLayout.COUNTERS);
+            return rocksDbProperties;
+        }
+    }
+
+}
@@ -0,0 +1,98 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.damsel.shumaich.OperationType;
+import com.rbkmoney.shumaich.config.RocksDbProperties;
+import com.rbkmoney.shumaich.helpers.TestData;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rocksdb.RocksDB;
+import org.rocksdb.Transaction;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.test.context.ContextConfiguration;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static com.rbkmoney.shumaich.helpers.TestData.MERCHANT_ACC;
+import static com.rbkmoney.shumaich.helpers.TestData.OPERATION_LOG_TOPIC;
+
+/**
+ * Runs the same cases in optimistic transactions validated on commit instead of row locks.
+ */
+@ContextConfiguration(classes = BalanceServiceOptimisticTest.Config.class)
+public class BalanceServiceOptimisticTest extends BalanceServiceTest {
+
+    @Autowired
+    ConflictingWalSyncService conflictingWalSyncService;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    public static class Config {
+
+        @Bean
+        @Primary
+        RocksDbProperties optimisticRocksDbProperties() {
+            RocksDbProperties rocksDbProperties = new RocksDbProperties();
+            rocksDbProperties.setEngine(RocksDbProperties.Engine.OPTIMISTIC_TRANSACTION_DB);
+            return rocksDbProperties;
+        }
+
+        @Bean
+        @Primary
+        ConflictingWalSyncService conflictingWalSyncService(
+                RocksDB rocksDB,
+                RocksDbProperties rocksDbProperties,
+                MeterRegistry meterRegistry) {
+            return new ConflictingWalSyncService(rocksDB, rocksDbProperties, meterRegistry);
+        }
+    }
+
+    /**
+     * Runs given action right before the next commit, the last point where the transaction can be overtaken.
+     */
+    static class ConflictingWalSyncService extends WalSyncService {
+
+        private final AtomicReference<Runnable> beforeCommit = new AtomicReference<>();
+
+        ConflictingWalSyncService(RocksDB rocksDB, RocksDbProperties rocksDbProperties, MeterRegistry meterRegistry) {
+            super(rocksDB, rocksDbProperties, meterRegistry);
+        }
+
+        void beforeNextCommit(Runnable action) {
+            beforeCommit.set(action);
+        }
+
+        @Override
+        public long getWriteSize(Transaction transaction) {
+            Runnable action = beforeCommit.getAndSet(null);
+            if (action != null) {
+                action.run();
+            }
+            return super.getWriteSize(transaction);
+        }
+    }
+
+    @Test
+    public void transactionOvertakenOnSameAccountRetried() {
+        balanceService.proceedBatch(holds(), List.of(TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 2L)));
+        // another transaction reads and commits the same balance while the first one is about to commit
+        conflictingWalSyncService.beforeNextCommit(() -> CompletableFuture.runAsync(() -> balanceService.proceedBatch(
+                List.of(TestData.operationLog("otherPlan", 0L, MERCHANT_ACC, 50L, OperationType.HOLD)),
+                List.of()
+        )).join());
+
+        balanceService.proceedBatch(commits(), List.of(TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 4L)));
+
+        checkBalance(MERCHANT_ACC, 100L, 100L, 150L);
+        Assert.assertEquals(1.0, meterRegistry.get("shumaich.transaction.conflicts")
+                .tag("outcome", "retried")
+                .counter()
+                .count(), 0.0);
+    }
+
+}
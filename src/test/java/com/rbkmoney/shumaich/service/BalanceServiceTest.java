@@ -0,0 +1,239 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.damsel.shumaich.OperationLog;
+import com.rbkmoney.damsel.shumaich.OperationType;
+import com.rbkmoney.shumaich.RocksdbTestBase;
+import com.rbkmoney.shumaich.config.ApplyProperties;
+import com.rbkmoney.shumaich.config.PlanExpiryProperties;
+import com.rbkmoney.shumaich.dao.BalanceCounterDao;
+import com.rbkmoney.shumaich.dao.BalanceDao;
+import com.rbkmoney.shumaich.dao.KafkaOffsetDao;
+import com.rbkmoney.shumaich.dao.PlanDao;
+import com.rbkmoney.shumaich.dao.PlanExpiryDao;
+import com.rbkmoney.shumaich.domain.Balance;
+import com.rbkmoney.shumaich.domain.KafkaOffset;
+import com.rbkmoney.shumaich.domain.Plan;
+import com.rbkmoney.shumaich.helpers.TestData;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Assert;
+import org.junit.Test;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import static com.rbkmoney.shumaich.helpers.TestData.MERCHANT_ACC;
+import static com.rbkmoney.shumaich.helpers.TestData.OPERATION_LOG_TOPIC;
+import static com.rbkmoney.shumaich.helpers.TestData.PROVIDER_ACC;
+
+@ContextConfiguration(classes = {
+        BalanceDao.class, BalanceCounterDao.class, PlanDao.class, PlanExpiryDao.class, KafkaOffsetDao.class,
+        ApplyProperties.class, PlanExpiryProperties.class, BalanceService.class, BalanceCache.class,
+        PlanService.class, KafkaOffsetService.class, SimpleMeterRegistry.class, WalSyncService.class
+})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
+public class BalanceServiceTest extends RocksdbTestBase {
+
+    private static final String PLAN_ID = "plan";
+
+    @Autowired
+    BalanceService balanceService;
+
+    @Autowired
+    BalanceDao balanceDao;
+
+    @Autowired
+    PlanService planService;
+
+    @Autowired
+    PlanDao planDao;
+
+    @Autowired
+    ApplyProperties applyProperties;
+
+    @Autowired
+    KafkaOffsetService kafkaOffsetService;
+
+    @Autowired
+    RocksDB rocksDB;
+
+    @Autowired
+    WriteOptions writeOptions;
+
+    @Test
+    public void proceedBatchAppliesOperationsWithOffsets() {
+        balanceService.proceedBatch(holds(), List.of(TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 2L)));
+
+        checkBalance(MERCHANT_ACC, 0L, 0L, 100L);
+        checkBalance(PROVIDER_ACC, 0L, -100L, 0L);
+        checkOffset(2L);
+        Assert.assertNotNull(planService.getPlan(PLAN_ID, OperationType.HOLD));
+    }
+
+    @Test
+    public void proceedBatchSkipsDuplicatesInsideBatch() {
+        List<OperationLog> holds = holds();
+        balanceService.proceedBatch(
+                List.of(holds.get(0), holds.get(1), holds.get(0)),
+                List.of(TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 3L))
+        );
+
+        checkBalance(MERCHANT_ACC, 0L, 0L, 100L);
+        checkBalance(PROVIDER_ACC, 0L, -100L, 0L);
+        checkOffset(3L);
+    }
+
+    @Test
+    public void proceedBatchRemovesFinishedPlan() {
+        balanceService.proceedBatch(holds(), List.of(TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 2L)));
+        balanceService.proceedBatch(commits(), List.of(TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 4L)));
+
+        checkBalance(MERCHANT_ACC, 100L, 100L, 100L);
+        checkBalance(PROVIDER_ACC, -100L, -100L, -100L);
+        checkOffset(4L);
+        Assert.assertNull(planService.getPlan(PLAN_ID, OperationType.HOLD));
+        Assert.assertNull(planService.getPlan(PLAN_ID, OperationType.COMMIT));
+    }
+
+    @Test
+    public void proceedBatchAppliesHoldsAndCommitsOfOnePlan() {
+        List<OperationLog> operationLogs = new ArrayList<>(holds());
+        operationLogs.addAll(commits());
+        balanceService.proceedBatch(operationLogs, List.of(TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 4L)));
+
+        checkBalance(MERCHANT_ACC, 100L, 100L, 100L);
+        checkBalance(PROVIDER_ACC, -100L, -100L, -100L);
+        Assert.assertNull(planService.getPlan(PLAN_ID, OperationType.HOLD));
+        Assert.assertNull(planService.getPlan(PLAN_ID, OperationType.COMMIT));
+    }
+
+    @Test
+    public void proceedBatchNetsOperationsOfOneAccount() {
+        List<OperationLog> operationLogs = new ArrayList<>(holds());
+        operationLogs.add(TestData.operationLog("otherPlan", 0L, MERCHANT_ACC, 50L, OperationType.HOLD));
+        operationLogs.add(TestData.operationLog("otherPlan", 1L, PROVIDER_ACC, -50L, OperationType.HOLD));
+        operationLogs.addAll(commits());
+        balanceService.proceedBatch(operationLogs, List.of(TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 6L)));
+
+        checkBalance(MERCHANT_ACC, 100L, 100L, 150L);
+        checkBalance(PROVIDER_ACC, -100L, -150L, -100L);
+        Assert.assertNotNull(planService.getPlan("otherPlan", OperationType.HOLD));
+    }
+
+    @Test
+    public void proceedRecordsCreatesBalanceAndRemovesFinishedPlan() {
+        holds().forEach(balanceService::proceedHold);
+        commits().forEach(balanceService::proceedFinalOp);
+
+        checkBalance(MERCHANT_ACC, 100L, 100L, 100L);
+        checkBalance(PROVIDER_ACC, -100L, -100L, -100L);
+        Assert.assertNull(planService.getPlan(PLAN_ID, OperationType.HOLD));
+        Assert.assertNull(planService.getPlan(PLAN_ID, OperationType.COMMIT));
+    }
+
+    @Test
+    public void planProgressSplitIntoSegmentsOfAccounts() {
+        holds().forEach(balanceService::proceedHold);
+
+        Assert.assertEquals(2, planDao.getByPrefix(PLAN_ID + "_HOLD_").size());
+        Assert.assertTrue(planService.getPlan(PLAN_ID, OperationType.HOLD).getBatch(1L).isCompleted());
+    }
+
+    @Test
+    public void segmentsOfAccountRemovedOnceAccountFinished() {
+        holds().forEach(balanceService::proceedHold);
+
+        balanceService.proceedFinalOp(commits().get(0));
+        Assert.assertEquals(Set.of(PLAN_ID + "_HOLD_" + PROVIDER_ACC), planDao.getByPrefix(PLAN_ID + "_").keySet());
+
+        balanceService.proceedFinalOp(commits().get(1));
+        Assert.assertTrue(planDao.getByPrefix(PLAN_ID + "_").isEmpty());
+    }
+
+    @Test
+    public void segmentsOfPlanReadByPrefixOfItsId() {
+        String planId = "invoice1234.1";
+        balanceService.proceedHold(TestData.operationLog(planId, 0L, MERCHANT_ACC, 100L, OperationType.HOLD));
+        balanceService.proceedHold(TestData.operationLog(planId, 1L, PROVIDER_ACC, -100L, OperationType.HOLD));
+        balanceService.proceedHold(TestData.operationLog(planId + "0", 0L, MERCHANT_ACC, 50L, OperationType.HOLD));
+
+        Assert.assertEquals(2, planService.getSegments(planId).size());
+        Assert.assertTrue(planService.getPlan(planId, OperationType.HOLD).getBatch(1L).isCompleted());
+    }
+
+    @Test
+    public void finalOperationWithOtherPostingsThanHoldSkipped() {
+        holds().forEach(balanceService::proceedHold);
+        commits().forEach(commit -> balanceService.proceedFinalOp(commit.setBatchHash(2L)));
+
+        checkBalance(MERCHANT_ACC, 0L, 0L, 100L);
+        checkBalance(PROVIDER_ACC, 0L, -100L, 0L);
+        Assert.assertNotNull(planService.getPlan(PLAN_ID, OperationType.HOLD));
+        Assert.assertNull(planService.getPlan(PLAN_ID, OperationType.COMMIT));
+    }
+
+    @Test
+    public void planStoredBeforeSegmentsIsContinuedAndRemoved() throws RocksDBException {
+        applyProperties.setLegacyPlanKeys(true);
+        Plan plan = planService.applyToPlan(holds().get(0), null);
+        planService.applyToPlan(holds().get(1), plan);
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            planDao.putInBatch(writeBatch, PLAN_ID + "_HOLD", plan);
+            rocksDB.write(writeOptions, writeBatch);
+        }
+
+        holds().forEach(balanceService::proceedHold);
+        Assert.assertNull(balanceDao.get(MERCHANT_ACC));
+
+        commits().forEach(balanceService::proceedFinalOp);
+        Assert.assertNull(planDao.get(PLAN_ID + "_HOLD"));
+        Assert.assertNull(planService.getPlan(PLAN_ID, OperationType.COMMIT));
+    }
+
+    @Test
+    public void proceedOperationSavesOffsetAndSkipsDuplicate() {
+        List<OperationLog> holds = holds();
+        balanceService.proceedOperation(holds.get(0), TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 1L));
+        balanceService.proceedOperation(holds.get(1), TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 2L));
+        balanceService.proceedOperation(holds.get(0), TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 3L));
+
+        checkBalance(MERCHANT_ACC, 0L, 0L, 100L);
+        checkBalance(PROVIDER_ACC, 0L, -100L, 0L);
+        checkOffset(3L);
+    }
+
+    List<OperationLog> holds() {
+        return List.of(
+                TestData.operationLog(PLAN_ID, 0L, MERCHANT_ACC, 100L, OperationType.HOLD),
+                TestData.operationLog(PLAN_ID, 1L, PROVIDER_ACC, -100L, OperationType.HOLD)
+        );
+    }
+
+    List<OperationLog> commits() {
+        return List.of(
+                TestData.operationLog(PLAN_ID, 0L, MERCHANT_ACC, 100L, OperationType.COMMIT),
+                TestData.operationLog(PLAN_ID, 1L, PROVIDER_ACC, -100L, OperationType.COMMIT)
+        );
+    }
+
+    void checkBalance(long accountId, long amount, long minAmount, long maxAmount) {
+        Balance balance = balanceDao.get(accountId);
+        Assert.assertEquals(amount, balance.getAmount());
+        Assert.assertEquals(minAmount, balance.getMinAmount());
+        Assert.assertEquals(maxAmount, balance.getMaxAmount());
+    }
+
+    private void checkOffset(Long expectedOffset) {
+        List<KafkaOffset> kafkaOffsets = kafkaOffsetService.loadOffsets(List.of(
+                TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, 0L).getTopicPartition()
+        ));
+        Assert.assertEquals(expectedOffset, kafkaOffsets.get(0).getOffset());
+    }
+}
@@ -0,0 +1,25 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.shumaich.config.RocksDbProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Primary;
+import org.springframework.test.context.ContextConfiguration;
+
+/**
+ * Runs the same cases on plain RocksDB with write batches instead of transactions.
+ */
+@ContextConfiguration(classes = BalanceServiceWriteBatchTest.Config.class)
+public class BalanceServiceWriteBatchTest extends BalanceServiceTest {
+
+    public static class Config {
+
+        @Bean
+        @Primary
+        RocksDbProperties writeBatchRocksDbProperties() {
+            RocksDbProperties rocksDbProperties = new RocksDbProperties();
+            rocksDbProperties.setEngine(RocksDbProperties.Engine.WRITE_BATCH);
+            return rocksDbProperties;
+        }
+    }
+
+}
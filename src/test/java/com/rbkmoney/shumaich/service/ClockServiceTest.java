@@ -46,7 +46,7 @@ public class ClockServiceTest {
     @Test
     public void checkClockTimeline_success() {
         when(kafkaOffsetService.isBeforeCurrentOffsets(any())).thenReturn(true);
-        service.hardCheckClockTimeline(getFilledClock());
+        service.hardCheckClockTimeline(getFilledClock(), partition -> true);
         service.softCheckClockTimeline(getFilledClock());
         service.softCheckClockTimeline(getEmptyClock());
         service.softCheckClockTimeline(getLatestClock());
@@ -54,18 +54,24 @@ public class ClockServiceTest {
 
     @Test(expected = IllegalArgumentException.class)
     public void checkClockTimeline_latest() {
-        service.hardCheckClockTimeline(getLatestClock());
+        service.hardCheckClockTimeline(getLatestClock(), partition -> true);
     }
 
     @Test(expected = IllegalArgumentException.class)
     public void checkClockTimeline_empty() {
-        service.hardCheckClockTimeline(getEmptyClock());
+        service.hardCheckClockTimeline(getEmptyClock(), partition -> true);
     }
 
     @Test(expected = NotReadyException.class)
     public void checkClockTimeline_notReady() {
         when(kafkaOffsetService.isBeforeCurrentOffsets(any())).thenReturn(false);
-        service.hardCheckClockTimeline(getFilledClock());
+        service.hardCheckClockTimeline(getFilledClock(), partition -> true);
+    }
+
+    @Test
+    public void checkClockTimeline_onlyCheckedPartitions() {
+        when(kafkaOffsetService.isBeforeCurrentOffsets(List.of())).thenReturn(true);
+        service.hardCheckClockTimeline(getFilledClock(), partition -> false);
     }
 
     private RecordMetadata getRecordMetadata(Integer partition, Integer offset) {
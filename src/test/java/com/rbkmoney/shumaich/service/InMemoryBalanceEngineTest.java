@@ -0,0 +1,149 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.damsel.shumaich.OperationLog;
+import com.rbkmoney.damsel.shumaich.OperationType;
+import com.rbkmoney.shumaich.RocksdbTestBase;
+import com.rbkmoney.shumaich.config.ApplyProperties;
+import com.rbkmoney.shumaich.config.PlanExpiryProperties;
+import com.rbkmoney.shumaich.dao.BalanceCounterDao;
+import com.rbkmoney.shumaich.dao.BalanceDao;
+import com.rbkmoney.shumaich.dao.KafkaOffsetDao;
+import com.rbkmoney.shumaich.dao.PlanDao;
+import com.rbkmoney.shumaich.dao.PlanExpiryDao;
+import com.rbkmoney.shumaich.domain.KafkaOffset;
+import com.rbkmoney.shumaich.exception.ReplayRequiredException;
+import com.rbkmoney.shumaich.helpers.TestData;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.rbkmoney.shumaich.helpers.TestData.MERCHANT_ACC;
+import static com.rbkmoney.shumaich.helpers.TestData.OPERATION_LOG_TOPIC;
+import static com.rbkmoney.shumaich.helpers.TestData.PROVIDER_ACC;
+import static com.rbkmoney.shumaich.helpers.TestData.SYSTEM_ACC;
+
+@ContextConfiguration(classes = {
+        BalanceDao.class, BalanceCounterDao.class, PlanDao.class, PlanExpiryDao.class, KafkaOffsetDao.class,
+        ApplyProperties.class, PlanExpiryProperties.class, BalanceService.class, BalanceCache.class,
+        PlanService.class, KafkaOffsetService.class, SimpleMeterRegistry.class, WalSyncService.class,
+        InMemoryBalanceEngine.class
+})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
+public class InMemoryBalanceEngineTest extends RocksdbTestBase {
+
+    private static final String PLAN_ID = "plan";
+    private static final TopicPartition PARTITION = new TopicPartition(OPERATION_LOG_TOPIC, 0);
+
+    @Autowired
+    InMemoryBalanceEngine inMemoryBalanceEngine;
+
+    @Autowired
+    ApplyProperties applyProperties;
+
+    @Autowired
+    BalanceDao balanceDao;
+
+    @Autowired
+    PlanService planService;
+
+    @Autowired
+    KafkaOffsetService kafkaOffsetService;
+
+    @Before
+    public void setUp() {
+        applyProperties.getInMemory().setSnapshotRecords(100);
+        applyProperties.getInMemory().setSnapshotIntervalMs(0);
+    }
+
+    @Test
+    public void stateWrittenOnlyBySnapshot() {
+        inMemoryBalanceEngine.apply(records(0, operationLogs(OperationType.HOLD)), operationLog -> true);
+
+        Assert.assertNull(balanceDao.get(MERCHANT_ACC));
+        Assert.assertTrue(kafkaOffsetService.loadOffsets(List.of(PARTITION)).isEmpty());
+
+        inMemoryBalanceEngine.snapshotOutdated();
+
+        Assert.assertEquals(100L, balanceDao.get(MERCHANT_ACC).getMaxAmount());
+        Assert.assertEquals(-100L, balanceDao.get(PROVIDER_ACC).getMinAmount());
+        Assert.assertEquals(
+                List.of(new KafkaOffset(PARTITION, 2L)),
+                kafkaOffsetService.loadOffsets(List.of(PARTITION))
+        );
+        Assert.assertNotNull(planService.getPlan(PLAN_ID, OperationType.HOLD));
+    }
+
+    @Test
+    public void snapshotTakenAfterRecordsLimit() {
+        applyProperties.getInMemory().setSnapshotRecords(4);
+        inMemoryBalanceEngine.apply(records(0, operationLogs(OperationType.HOLD)), operationLog -> true);
+        inMemoryBalanceEngine.apply(records(2, operationLogs(OperationType.COMMIT)), operationLog -> true);
+
+        Assert.assertEquals(100L, balanceDao.get(MERCHANT_ACC).getAmount());
+        Assert.assertEquals(-100L, balanceDao.get(PROVIDER_ACC).getAmount());
+        Assert.assertNull(planService.getPlan(PLAN_ID, OperationType.HOLD));
+        Assert.assertNull(planService.getPlan(PLAN_ID, OperationType.COMMIT));
+    }
+
+    @Test
+    public void idleBalancesReloadedFromSnapshot() {
+        inMemoryBalanceEngine.apply(records(0, operationLogs(OperationType.HOLD)), operationLog -> true);
+        inMemoryBalanceEngine.snapshotOutdated();
+        inMemoryBalanceEngine.apply(records(2, List.of(
+                TestData.operationLog("otherPlan", 0L, SYSTEM_ACC, 50L, OperationType.HOLD)
+        )), operationLog -> true);
+        inMemoryBalanceEngine.snapshotOutdated();
+        inMemoryBalanceEngine.apply(records(3, operationLogs(OperationType.COMMIT)), operationLog -> true);
+        inMemoryBalanceEngine.snapshotOutdated();
+
+        Assert.assertEquals(100L, balanceDao.get(MERCHANT_ACC).getAmount());
+        Assert.assertEquals(100L, balanceDao.get(MERCHANT_ACC).getMaxAmount());
+        Assert.assertEquals(-100L, balanceDao.get(PROVIDER_ACC).getAmount());
+    }
+
+    @Test
+    public void replayedRecordsSkipped() {
+        inMemoryBalanceEngine.apply(records(0, operationLogs(OperationType.HOLD)), operationLog -> true);
+        inMemoryBalanceEngine.apply(records(0, operationLogs(OperationType.HOLD)), operationLog -> true);
+        inMemoryBalanceEngine.snapshotOutdated();
+
+        Assert.assertEquals(100L, balanceDao.get(MERCHANT_ACC).getMaxAmount());
+    }
+
+    @Test(expected = ReplayRequiredException.class)
+    public void missingRecordsRequireReplay() {
+        inMemoryBalanceEngine.apply(records(0, operationLogs(OperationType.HOLD)), operationLog -> true);
+        inMemoryBalanceEngine.apply(records(5, operationLogs(OperationType.COMMIT)), operationLog -> true);
+    }
+
+    private List<OperationLog> operationLogs(OperationType operationType) {
+        return List.of(
+                TestData.operationLog(PLAN_ID, 0L, MERCHANT_ACC, 100L, operationType),
+                TestData.operationLog(PLAN_ID, 1L, PROVIDER_ACC, -100L, operationType)
+        );
+    }
+
+    private ConsumerRecords<Long, OperationLog> records(long fromOffset, List<OperationLog> operationLogs) {
+        List<ConsumerRecord<Long, OperationLog>> records = new ArrayList<>();
+        for (int i = 0; i < operationLogs.size(); i++) {
+            OperationLog operationLog = operationLogs.get(i);
+            records.add(new ConsumerRecord<>(
+                    PARTITION.topic(), PARTITION.partition(), fromOffset + i,
+                    operationLog.getAccount().getId(), operationLog
+            ));
+        }
+        return new ConsumerRecords<>(Map.of(PARTITION, records));
+    }
+
+}
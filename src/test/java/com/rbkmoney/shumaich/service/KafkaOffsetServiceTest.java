@@ -4,6 +4,7 @@ import com.rbkmoney.shumaich.RocksdbTestBase;
 import com.rbkmoney.shumaich.dao.KafkaOffsetDao;
 import com.rbkmoney.shumaich.domain.KafkaOffset;
 import com.rbkmoney.shumaich.helpers.TestData;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.Assert;
 import org.junit.Test;
@@ -14,7 +15,9 @@ import org.springframework.test.context.ContextConfiguration;
 import java.util.List;
 
 @Slf4j
-@ContextConfiguration(classes = {KafkaOffsetDao.class, KafkaOffsetService.class})
+@ContextConfiguration(classes = {
+        KafkaOffsetDao.class, KafkaOffsetService.class, WalSyncService.class, SimpleMeterRegistry.class
+})
 @DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
 public class KafkaOffsetServiceTest extends RocksdbTestBase {
 
@@ -0,0 +1,82 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.damsel.shumaich.OperationLog;
+import com.rbkmoney.shumaich.config.GroupMembershipProperties;
+import com.rbkmoney.shumaich.exception.NotReadyException;
+import com.rbkmoney.shumaich.kafka.TopicConsumptionManager;
+import org.apache.kafka.common.PartitionInfo;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.kafka.core.KafkaTemplate;
+
+import java.util.List;
+import java.util.Set;
+
+import static com.rbkmoney.shumaich.helpers.TestData.MERCHANT_ACC;
+import static com.rbkmoney.shumaich.helpers.TestData.OPERATION_LOG_TOPIC;
+import static com.rbkmoney.shumaich.helpers.TestData.PROVIDER_ACC;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyNoInteractions;
+import static org.mockito.Mockito.when;
+
+@SuppressWarnings("unchecked")
+public class PartitionOwnershipServiceTest {
+
+    private final GroupMembershipProperties groupMembershipProperties = new GroupMembershipProperties();
+    private final KafkaTemplate<Long, OperationLog> kafkaTemplate = mock(KafkaTemplate.class);
+    private final TopicConsumptionManager<Long, ?> topicConsumptionManager = mock(TopicConsumptionManager.class);
+    private final ObjectProvider<TopicConsumptionManager<Long, ?>> topicConsumptionManagerProvider =
+            mock(ObjectProvider.class);
+    private final PartitionOwnershipService service = new PartitionOwnershipService(
+            groupMembershipProperties, kafkaTemplate, topicConsumptionManagerProvider
+    );
+
+    @Before
+    public void setUp() {
+        groupMembershipProperties.setEnabled(true);
+        when(kafkaTemplate.getDefaultTopic()).thenReturn(OPERATION_LOG_TOPIC);
+        when(kafkaTemplate.partitionsFor(OPERATION_LOG_TOPIC)).thenReturn(List.of(
+                partitionInfo(0), partitionInfo(1), partitionInfo(2), partitionInfo(3)
+        ));
+        when(topicConsumptionManagerProvider.getObject()).thenReturn((TopicConsumptionManager) topicConsumptionManager);
+    }
+
+    @Test
+    public void ownedAccountRead() {
+        when(topicConsumptionManager.getGroupOwnedPartitions()).thenReturn(Set.of(0, 1, 2, 3));
+
+        service.checkOwned(MERCHANT_ACC);
+    }
+
+    @Test(expected = NotReadyException.class)
+    public void accountOfRevokedPartitionRefused() {
+        when(topicConsumptionManager.getGroupOwnedPartitions()).thenReturn(Set.of());
+
+        service.checkOwned(MERCHANT_ACC);
+    }
+
+    @Test
+    public void accountsOwnedOnlyIfAllPartitionsOwned() {
+        when(topicConsumptionManager.getGroupOwnedPartitions()).thenReturn(Set.of(0, 1, 2, 3));
+        Assert.assertTrue(service.isOwned(List.of(MERCHANT_ACC, PROVIDER_ACC)));
+
+        when(topicConsumptionManager.getGroupOwnedPartitions()).thenReturn(Set.of());
+        Assert.assertFalse(service.isOwned(List.of(MERCHANT_ACC, PROVIDER_ACC)));
+    }
+
+    @Test
+    public void everyAccountReadWithoutConsumerGroup() {
+        groupMembershipProperties.setEnabled(false);
+
+        service.checkOwned(MERCHANT_ACC);
+
+        verifyNoInteractions(topicConsumptionManager);
+    }
+
+    private static PartitionInfo partitionInfo(int partition) {
+        return new PartitionInfo(OPERATION_LOG_TOPIC, partition, null, null, null);
+    }
+
+}
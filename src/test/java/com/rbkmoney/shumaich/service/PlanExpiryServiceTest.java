@@ -0,0 +1,228 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.damsel.shumaich.OperationLog;
+import com.rbkmoney.damsel.shumaich.OperationType;
+import com.rbkmoney.shumaich.RocksdbTestBase;
+import com.rbkmoney.shumaich.config.ApplyProperties;
+import com.rbkmoney.shumaich.config.PlanExpiryProperties;
+import com.rbkmoney.shumaich.converter.PostingBatchDamselToPostingBatchConverter;
+import com.rbkmoney.shumaich.converter.PostingDamselToPostingConverter;
+import com.rbkmoney.shumaich.converter.PostingPlanOperationToOperationLogListConverter;
+import com.rbkmoney.shumaich.dao.BalanceCounterDao;
+import com.rbkmoney.shumaich.dao.BalanceDao;
+import com.rbkmoney.shumaich.dao.KafkaOffsetDao;
+import com.rbkmoney.shumaich.dao.PlanDao;
+import com.rbkmoney.shumaich.dao.PlanExpiryDao;
+import com.rbkmoney.shumaich.domain.Balance;
+import com.rbkmoney.shumaich.domain.KafkaOffset;
+import com.rbkmoney.shumaich.domain.PostingBatch;
+import com.rbkmoney.shumaich.domain.PostingPlanOperation;
+import com.rbkmoney.shumaich.helpers.TestData;
+import com.rbkmoney.shumaich.utils.HashUtils;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.ContextConfiguration;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import static com.rbkmoney.shumaich.helpers.TestData.MERCHANT_ACC;
+import static com.rbkmoney.shumaich.helpers.TestData.OPERATION_LOG_TOPIC;
+import static com.rbkmoney.shumaich.helpers.TestData.PROVIDER_ACC;
+import static com.rbkmoney.shumaich.helpers.TestData.SYSTEM_ACC;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@ContextConfiguration(classes = {
+        BalanceDao.class, BalanceCounterDao.class, PlanDao.class, PlanExpiryDao.class, KafkaOffsetDao.class,
+        ApplyProperties.class, PlanExpiryProperties.class, BalanceService.class, BalanceCache.class,
+        PlanService.class, KafkaOffsetService.class, SimpleMeterRegistry.class, WalSyncService.class,
+        ClockService.class, PlanExpiryService.class, PlanExpiryServiceTest.Config.class
+})
+@DirtiesContext(classMode = DirtiesContext.ClassMode.BEFORE_EACH_TEST_METHOD)
+public class PlanExpiryServiceTest extends RocksdbTestBase {
+
+    private static final String PLAN_ID = "plan";
+
+    private final PostingPlanOperationToOperationLogListConverter converter =
+            new PostingPlanOperationToOperationLogListConverter();
+    private final PostingBatchDamselToPostingBatchConverter batchConverter =
+            new PostingBatchDamselToPostingBatchConverter(new PostingDamselToPostingConverter());
+
+    @Autowired
+    PlanExpiryService planExpiryService;
+
+    @Autowired
+    PlanExpiryProperties planExpiryProperties;
+
+    @Autowired
+    BalanceService balanceService;
+
+    @Autowired
+    BalanceDao balanceDao;
+
+    @Autowired
+    PlanService planService;
+
+    @Autowired
+    PlanExpiryDao planExpiryDao;
+
+    @Autowired
+    KafkaOffsetService kafkaOffsetService;
+
+    @Autowired
+    WriterService writerService;
+
+    @Autowired
+    MeterRegistry meterRegistry;
+
+    private PostingPlanOperation hold;
+
+    @Configuration
+    public static class Config {
+
+        @Bean
+        public WriterService writerService() {
+            return mock(WriterService.class);
+        }
+
+    }
+
+    @Before
+    public void setUp() {
+        planExpiryProperties.setEnabled(true);
+        planExpiryProperties.setTtlMs(0);
+        planExpiryProperties.setSweepIntervalMs(0);
+        when(writerService.write(any())).thenReturn(List.of(recordMetadata(2L)));
+        hold = hold(PLAN_ID);
+        balanceService.proceedBatch(converter.convert(hold), List.of(offset(2L)));
+    }
+
+    @Test
+    public void abandonedHoldRolledBackThroughLog() {
+        planExpiryService.sweep();
+
+        PostingPlanOperation rollback = writtenOperation();
+        Assert.assertEquals(OperationType.ROLLBACK, rollback.getOperationType());
+        Assert.assertEquals(PLAN_ID, rollback.getPlanId());
+        for (int i = 0; i < hold.getPostingBatches().size(); i++) {
+            PostingBatch heldBatch = hold.getPostingBatches().get(i);
+            PostingBatch rolledBackBatch = rollback.getPostingBatches().get(i);
+            Assert.assertEquals(heldBatch.getId(), rolledBackBatch.getId());
+            Assert.assertEquals(
+                    HashUtils.computeHash(heldBatch.getPostings()),
+                    HashUtils.computeHash(rolledBackBatch.getPostings())
+            );
+        }
+        Assert.assertEquals(1L, meterRegistry.get("shumaich.plan.expired.size").summary().count());
+
+        balanceService.proceedBatch(converter.convert(rollback), List.of(offset(3L)));
+
+        Assert.assertNull(planService.getPlan(PLAN_ID, OperationType.HOLD));
+        checkReservationReleased(PROVIDER_ACC);
+        checkReservationReleased(SYSTEM_ACC);
+        checkReservationReleased(MERCHANT_ACC);
+    }
+
+    @Test
+    public void duplicatedRollbackSkipped() {
+        planExpiryService.sweep();
+        List<OperationLog> rollbackLogs = converter.convert(writtenOperation());
+
+        balanceService.proceedBatch(rollbackLogs, List.of(offset(3L)));
+        balanceService.proceedBatch(rollbackLogs, List.of(offset(4L)));
+
+        checkReservationReleased(PROVIDER_ACC);
+        checkReservationReleased(SYSTEM_ACC);
+        checkReservationReleased(MERCHANT_ACC);
+    }
+
+    @Test
+    public void holdKeptWithinTtl() {
+        planExpiryProperties.setTtlMs(60000);
+        balanceService.proceedBatch(converter.convert(hold("other")), List.of(offset(4L)));
+
+        planExpiryService.sweep();
+
+        verify(writerService, times(1)).write(any());
+        Assert.assertEquals(PLAN_ID, writtenOperation().getPlanId());
+    }
+
+    @Test
+    public void holdKeptUntilFinalOperationApplied() {
+        planExpiryService.writeFinalOperation(PLAN_ID, () -> List.of(recordMetadata(2L)));
+
+        planExpiryService.sweep();
+
+        verify(writerService, never()).write(any());
+
+        kafkaOffsetService.saveOffsets(List.of(offset(3L)));
+        planExpiryService.sweep();
+
+        verify(writerService, times(1)).write(any());
+    }
+
+    @Test
+    public void rollbackWrittenOnceUntilApplied() {
+        planExpiryService.sweep();
+        planExpiryService.sweep();
+
+        verify(writerService, times(1)).write(any());
+    }
+
+    @Test
+    public void postponedPlanKeepsOneScheduleEntry() {
+        planExpiryProperties.setTtlMs(60000);
+        balanceService.proceedBatch(converter.convert(hold), List.of(offset(3L)));
+        planExpiryService.writeFinalOperation(PLAN_ID, () -> List.of(recordMetadata(4L)));
+
+        Assert.assertEquals(1, planExpiryDao.getDue(Long.MAX_VALUE, Integer.MAX_VALUE).size());
+    }
+
+    private PostingPlanOperation hold(String planId) {
+        return PostingPlanOperation.builder()
+                .planId(planId)
+                .operationType(OperationType.HOLD)
+                .creationTime(LocalDateTime.now())
+                .postingBatches(List.of(batchConverter.convert(TestData.postingBatchDamsel())))
+                .build();
+    }
+
+    private PostingPlanOperation writtenOperation() {
+        ArgumentCaptor<PostingPlanOperation> captor = ArgumentCaptor.forClass(PostingPlanOperation.class);
+        verify(writerService).write(captor.capture());
+        reset(writerService);
+        return captor.getValue();
+    }
+
+    private void checkReservationReleased(long accountId) {
+        Balance balance = balanceDao.get(accountId);
+        Assert.assertEquals(0L, balance.getAmount());
+        Assert.assertEquals(0L, balance.getMinAmount());
+        Assert.assertEquals(0L, balance.getMaxAmount());
+    }
+
+    private static KafkaOffset offset(long offset) {
+        return TestData.kafkaOffset(OPERATION_LOG_TOPIC, 0, offset);
+    }
+
+    private static RecordMetadata recordMetadata(long offset) {
+        return new RecordMetadata(new TopicPartition(OPERATION_LOG_TOPIC, 0), 0, offset, 0, 0L, 0, 0);
+    }
+
+}
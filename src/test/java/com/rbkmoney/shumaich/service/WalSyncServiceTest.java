@@ -0,0 +1,77 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.shumaich.config.RocksDbProperties;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class WalSyncServiceTest {
+
+    private final RocksDB rocksDB = mock(RocksDB.class);
+
+    @Test
+    public void walSyncedAfterBytesLimit() throws Exception {
+        WalSyncService walSyncService = walSyncService(RocksDbProperties.Durability.BOUNDED);
+
+        walSyncService.written(60);
+        verify(rocksDB, never()).syncWal();
+
+        walSyncService.written(60);
+        verify(rocksDB, times(1)).syncWal();
+
+        walSyncService.written(60);
+        verify(rocksDB, times(1)).syncWal();
+    }
+
+    @Test
+    public void scheduledSyncSkippedWithoutWrites() throws Exception {
+        WalSyncService walSyncService = walSyncService(RocksDbProperties.Durability.BOUNDED);
+
+        walSyncService.syncWritten();
+        verify(rocksDB, never()).syncWal();
+
+        walSyncService.written(10);
+        walSyncService.syncWritten();
+        walSyncService.syncWritten();
+        verify(rocksDB, times(1)).syncWal();
+    }
+
+    @Test
+    public void failedSyncKeepsBytesForNextSync() throws Exception {
+        WalSyncService walSyncService = walSyncService(RocksDbProperties.Durability.BOUNDED);
+        doThrow(new RocksDBException("io error")).doNothing().when(rocksDB).syncWal();
+
+        walSyncService.written(120);
+        verify(rocksDB, times(1)).syncWal();
+
+        walSyncService.syncWritten();
+        verify(rocksDB, times(2)).syncWal();
+
+        walSyncService.syncWritten();
+        verify(rocksDB, times(2)).syncWal();
+    }
+
+    @Test
+    public void syncModeNeverSyncsWal() throws Exception {
+        WalSyncService walSyncService = walSyncService(RocksDbProperties.Durability.SYNC);
+
+        walSyncService.written(1000);
+        walSyncService.syncWritten();
+        verify(rocksDB, never()).syncWal();
+    }
+
+    private WalSyncService walSyncService(RocksDbProperties.Durability durability) {
+        RocksDbProperties rocksDbProperties = new RocksDbProperties();
+        rocksDbProperties.setDurability(durability);
+        rocksDbProperties.setWalSyncBytes(100);
+        return new WalSyncService(rocksDB, rocksDbProperties, new SimpleMeterRegistry());
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.rbkmoney.shumaich.service;
+
+import com.rbkmoney.damsel.shumaich.OperationLog;
+import com.rbkmoney.damsel.shumaich.OperationType;
+import com.rbkmoney.shumaich.converter.PostingPlanOperationToOperationLogListConverter;
+import com.rbkmoney.shumaich.domain.PostingPlanOperation;
+import com.rbkmoney.shumaich.helpers.TestData;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.rbkmoney.shumaich.helpers.TestData.OPERATION_LOG_TOPIC;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@SuppressWarnings("unchecked")
+public class WriterServiceTest {
+
+    private static final String FINAL_OPERATION_LOG_TOPIC = "final_operation_log";
+
+    private final KafkaTemplate<Long, OperationLog> kafkaTemplate = mock(KafkaTemplate.class);
+    private final WriterService writerService = new WriterService(
+            new PostingPlanOperationToOperationLogListConverter(), kafkaTemplate
+    );
+    private final AtomicLong offset = new AtomicLong();
+
+    @Before
+    public void setUp() {
+        ReflectionTestUtils.setField(writerService, "finalOperationLogTopicName", FINAL_OPERATION_LOG_TOPIC);
+        when(kafkaTemplate.getDefaultTopic()).thenReturn(OPERATION_LOG_TOPIC);
+        when(kafkaTemplate.send(anyString(), anyLong(), any())).thenAnswer(invocation -> {
+            ProducerRecord<Long, OperationLog> record = new ProducerRecord<>(
+                    invocation.getArgument(0), invocation.getArgument(1), invocation.getArgument(2)
+            );
+            RecordMetadata recordMetadata = new RecordMetadata(
+                    new TopicPartition(record.topic(), 0), 0, offset.getAndIncrement(), 0, 0L, 0, 0
+            );
+            SettableListenableFuture<SendResult<Long, OperationLog>> future = new SettableListenableFuture<>();
+            future.set(new SendResult<>(record, recordMetadata));
+            return future;
+        });
+    }
+
+    @Test
+    public void holdsSentToOperationLog() {
+        writerService.write(TestData.postingPlanOperation());
+
+        verify(kafkaTemplate, atLeastOnce()).send(eq(OPERATION_LOG_TOPIC), anyLong(), any());
+        verify(kafkaTemplate, never()).send(eq(FINAL_OPERATION_LOG_TOPIC), anyLong(), any());
+    }
+
+    @Test
+    public void finalOperationsSentToLane() {
+        for (OperationType operationType : new OperationType[]{OperationType.COMMIT, OperationType.ROLLBACK}) {
+            writerService.write(finalOperation(operationType));
+        }
+
+        verify(kafkaTemplate, atLeastOnce()).send(eq(FINAL_OPERATION_LOG_TOPIC), anyLong(), any());
+        verify(kafkaTemplate, never()).send(eq(OPERATION_LOG_TOPIC), anyLong(), any());
+    }
+
+    @Test
+    public void finalOperationsSentToOperationLogWithoutLane() {
+        ReflectionTestUtils.setField(writerService, "finalOperationLogTopicName", "");
+
+        writerService.write(finalOperation(OperationType.COMMIT));
+
+        verify(kafkaTemplate, atLeastOnce()).send(eq(OPERATION_LOG_TOPIC), anyLong(), any());
+    }
+
+    private static PostingPlanOperation finalOperation(OperationType operationType) {
+        PostingPlanOperation postingPlanOperation = TestData.postingPlanOperation();
+        postingPlanOperation.setOperationType(operationType);
+        return postingPlanOperation;
+    }
+
+}